@@ -3,5 +3,7 @@ package fi.samppa.server;
 public enum AuthStatus {
     OK,
     FAILED,
-    ALREADY_REGISTERED;
+    ALREADY_REGISTERED,
+    //the server is shedding load, try again later
+    BUSY;
 }
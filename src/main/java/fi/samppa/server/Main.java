@@ -3,8 +3,8 @@ package fi.samppa.server;
 import fi.samppa.server.config.Config;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
-import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
@@ -17,7 +17,6 @@ public class Main {
     public static Server server;
     public static int port = 5002;
     public static MainDatabase database;
-    public static Argon2PasswordEncoder pwHasher = new Argon2PasswordEncoder();
 
     public static void main(String[] args) throws IOException {
         database = new MainDatabase(Config.initConfig("data/", "sql.properties"));
@@ -31,6 +30,15 @@ public class Main {
         SpringApplication.run(Main.class, args);
     }
 
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> threadModeCustomizer() {
+        return protocolHandler -> {
+            if(Server.useVirtualThreads(server.config)){
+                protocolHandler.setExecutor(VirtualThreads.newThreadPerTaskExecutor());
+            }
+        };
+    }
+
     @Bean
     public WebMvcConfigurer corsConfigurer() {
         return new WebMvcConfigurer() {
@@ -1,33 +1,103 @@
 package fi.samppa.server;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.eventbus.AsyncEventBus;
+import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.Striped;
 import fi.samppa.server.clienthandling.Client;
 import fi.samppa.server.config.Config;
+import fi.samppa.server.encryption.PasswordHasher;
+import fi.samppa.server.encryption.SessionSelectors;
 import fi.samppa.server.logs.LogType;
+import fi.samppa.server.metrics.Metrics;
 import fi.samppa.server.sql.SQLStorage;
 import fi.samppa.server.sql.SQLTableManager;
+import fi.samppa.server.sql.SingleFlight;
+import fi.samppa.server.sql.drivers.RemoteHikariDriver;
 import lombok.Data;
-import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
 import org.springframework.security.crypto.keygen.KeyGenerators;
 
 import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 
 public class MainDatabase extends SQLStorage {
+    //rows read from the cursor at a time by the streaming reads, MySQL only honours it with useCursorFetch in the url
+    private static final int FETCH_SIZE = 256;
+
+    //serialises the version counter of each user's passwords
+    private final Striped<Lock> versionLocks = Striped.lock(64);
+
+    //PasswordChangeEvents in version order, delivered on a single thread so subscribers see that order too
+    private final EventBus changeBus = new AsyncEventBus("password-changes", Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "password-changes");
+        thread.setDaemon(true);
+        return thread;
+    }));
+
+    private final SessionSelectors sessionSelectors;
+
+    //users by username, empty for usernames that do not exist so unknown names do not reach the database either
+    private final LoadingCache<String, Optional<UserData>> users;
+
+    //concurrent reads of the same user's rows share one query, user lookups get the same from the cache loader
+    private final SingleFlight<UUID, List<PasswordData>> passwordReads = new SingleFlight<>("db.password-reads");
+    private final SingleFlight<UUID, List<LogData>> logReads = new SingleFlight<>("db.log-reads");
+
     public MainDatabase(Config sqlSettings) {
         super(sqlSettings);
+        this.users = CacheBuilder.newBuilder()
+                .maximumSize(sqlSettings.getLong("user-cache-size"))
+                .expireAfterWrite(sqlSettings.getLong("user-cache-ttl"), TimeUnit.SECONDS)
+                .recordStats()
+                .build(new CacheLoader<String, Optional<UserData>>() {
+                    @Override
+                    public Optional<UserData> load(String username) throws SQLException {
+                        return loadUserData(username);
+                    }
+                });
+        Metrics.gauge("users.cache-size", users::size);
+        Metrics.gauge("users.cache-hit-percent", () -> Math.round(users.stats().hitRate() * 100));
+        try {
+            this.sessionSelectors = SessionSelectors.load(new File(Server.DATA_FOLDER, "session-selector.key"));
+        }
+        catch (IOException e){
+            throw new UncheckedIOException("Could not load the session selector key", e);
+        }
+    }
+
+    public EventBus getChangeBus() {
+        return changeBus;
     }
 
     @Override
     public void createTables() throws SQLException {
         Connection connection = getConnection();
         addTable(connection, new SQLTableManager("users", "PRIMARY KEY(uuid)", "username text", "hash VARCHAR(256)", "salt text", "uuid VARCHAR(36)"));
-        addTable(connection, new SQLTableManager("sessions", "PRIMARY KEY(sessionhash)", "uuid VARCHAR(36)", "sessionhash text(256)", "enc text"));
-        addTable(connection, new SQLTableManager("passwords", "PRIMARY KEY(pwid)", "pwenc text", "userenc text", "user VARCHAR(36)", "site text", "pwid VARCHAR(36)"));
+        //MySQL can only index a prefix of a text column
+        addIndex(connection, "users", "users_username", getStorageDriver() instanceof RemoteHikariDriver ? "username(64)" : "username");
+        addTable(connection, new SQLTableManager("sessions", "PRIMARY KEY(sessionhash)", "uuid VARCHAR(36)", "sessionhash text(256)", "enc text",
+                "selector VARCHAR(64)", "expires BIGINT"));
+        addIndex(connection, "sessions", "sessions_selector", "selector");
+        addTable(connection, new SQLTableManager("passwords", "PRIMARY KEY(pwid)", "pwenc text", "userenc text", "user VARCHAR(36)", "site text", "pwid VARCHAR(36)",
+                "version BIGINT", "deleted INT"));
+        //rows from before versioning are all live and older than any change made from now on
+        connection.prepareStatement("UPDATE passwords SET version = 1, deleted = 0 WHERE version IS NULL").executeUpdate();
+        addIndex(connection, "passwords", "passwords_user_version", "user, version");
         addTable(connection, new SQLTableManager("logs", "", "type text", "info text", "user VARCHAR(36)", "ip text", "timestamp text", "id VARCHAR(36)"));
         closeConnection(connection);
     }
@@ -35,9 +105,14 @@ public class MainDatabase extends SQLStorage {
     public void addLog(UUID user, LogType logType, String info, String ipAddress){
         insert("logs", Arrays.asList("type", "info", "user", "ip", "timestamp", "id"), Arrays.asList(logType.toString(), info, user.toString(), ipAddress,
                 new SimpleDateFormat("HH:mm:ss dd/MM/yyyy").format(new Date()), UUID.randomUUID().toString()));
+        logReads.forget(user);
     }
 
     public List<LogData> getUserLogs(UUID user){
+        return new ArrayList<>(logReads.get(user, () -> queryUserLogs(user)));
+    }
+
+    private List<LogData> queryUserLogs(UUID user){
         Connection connection = null;
         List<LogData> list = new ArrayList<>();
         try {
@@ -72,27 +147,151 @@ public class MainDatabase extends SQLStorage {
         List<String> cNames = Arrays.asList("username", "hash", "salt", "uuid");
         List<Object> cValues = Arrays.asList(name, hash, salt, uuid.toString());
         insertOrUpdate("users", "uuid", cNames, cValues, cNames, cValues);
+        users.invalidate(name);
         return new UserData(uuid, new Client.CryptographyData(salt, hash));
     }
 
-    public void deletePassword(UUID password){
-        getTableManager("passwords").deleteValueFromPrimaryKey(password.toString());
+    /**
+     * Replaces the password hash of a user, for upgrading it to the current Argon2 parameters.
+     */
+    public void updateUserHash(UUID user, String hash){
+        updateValueSync("users", "hash", "uuid", user.toString(), hash, true);
+        users.asMap().values().removeIf(data -> data.isPresent() && data.get().getUuid().equals(user));
+    }
+
+    /**
+     * Replaces the password with a tombstone so clients syncing with {@link #forEachPasswordChange(UUID, long, Consumer)} see the deletion.
+     * @return false if the user has no such password
+     */
+    public boolean deletePassword(UUID user, UUID password){
+        Lock lock = versionLocks.get(user);
+        lock.lock();
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            long version = nextVersion(connection, user);
+            PreparedStatement statement = connection.prepareStatement("UPDATE passwords SET deleted = 1, version = ?, pwenc = '', userenc = '', site = '' WHERE pwid = ? AND user = ? AND deleted = 0");
+            statement.setLong(1, version);
+            statement.setString(2, password.toString());
+            statement.setString(3, user.toString());
+            if(statement.executeUpdate() == 0) return false;
+            passwordReads.forget(user);
+            changeBus.post(new PasswordChangeEvent(user, new PasswordChange("", "", "", password, version, true)));
+            return true;
+        }
+        catch (SQLException e){
+            e.printStackTrace();
+        }
+        finally {
+            lock.unlock();
+            if(connection != null) {
+                try {
+                    closeConnection(connection);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return false;
     }
 
-    public PasswordData savePassword(UUID user, String password, String username, String site){
+    /**
+     * The change is only published once the row is written, so pushed changes always exist in the database.
+     * @return null if the password could not be saved
+     */
+    public @Nullable PasswordData savePassword(UUID user, String password, String username, String site){
         UUID uuid = UUID.randomUUID();
-        List<String> cNames = Arrays.asList("pwenc", "userenc", "user", "site", "pwid");
-        List<Object> cValues = Arrays.asList(password, username, user.toString(), site, uuid);
-        insertOrUpdate("passwords", "pwid", cNames, cValues, cNames, cValues);
-        return new PasswordData(username, password, site, uuid);
+        Lock lock = versionLocks.get(user);
+        lock.lock();
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            long version = nextVersion(connection, user);
+            //the id is new, so a plain insert is enough and fails loudly instead of being swallowed like insertOrUpdate
+            PreparedStatement statement = connection.prepareStatement("INSERT INTO passwords (pwenc, userenc, user, site, pwid, version, deleted) VALUES (?, ?, ?, ?, ?, ?, 0)");
+            statement.setString(1, password);
+            statement.setString(2, username);
+            statement.setString(3, user.toString());
+            statement.setString(4, site);
+            statement.setString(5, uuid.toString());
+            statement.setLong(6, version);
+            statement.executeUpdate();
+            passwordReads.forget(user);
+            changeBus.post(new PasswordChangeEvent(user, new PasswordChange(username, password, site, uuid, version, false)));
+            return new PasswordData(username, password, site, uuid);
+        }
+        catch (SQLException e){
+            e.printStackTrace();
+        }
+        finally {
+            lock.unlock();
+            if(connection != null) {
+                try {
+                    closeConnection(connection);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tombstones are never removed, so the highest version of the user's rows only grows.
+     * The caller must hold the user's lock from {@link #versionLocks}.
+     */
+    private long nextVersion(Connection connection, UUID user) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("SELECT MAX(version) FROM passwords WHERE user = ?");
+        statement.setString(1, user.toString());
+        ResultSet rs = statement.executeQuery();
+        return rs.next() ? rs.getLong(1) + 1 : 1;
     }
 
-    public @Nullable PasswordData getPassword(UUID id){
+    /**
+     * Passes every change made to the user's passwords after the given version to the consumer, oldest first.
+     * A client without a copy of the vault uses version 0 and gets the live passwords without tombstones.
+     * @return the version the client is at after applying the changes
+     */
+    public long forEachPasswordChange(UUID user, long since, Consumer<PasswordChange> consumer){
         Connection connection = null;
+        long version = since;
         try {
             connection = getConnection();
-            PreparedStatement statement = connection.prepareStatement("SELECT * FROM passwords WHERE pwid = ?");
+            PreparedStatement statement = connection.prepareStatement(since > 0
+                    ? "SELECT * FROM passwords WHERE user = ? AND version > ? ORDER BY version"
+                    : "SELECT * FROM passwords WHERE user = ? AND version > ? AND deleted = 0 ORDER BY version");
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setString(1, user.toString());
+            statement.setLong(2, since);
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()){
+                version = rs.getLong("version");
+                consumer.accept(new PasswordChange(rs.getString("userenc"), rs.getString("pwenc"), rs.getString("site"),
+                        UUID.fromString(rs.getString("pwid")), version, rs.getInt("deleted") != 0));
+            }
+        }
+        catch (SQLException e){
+            e.printStackTrace();
+        }
+        finally {
+            if(connection != null) {
+                try {
+                    closeConnection(connection);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return version;
+    }
+
+    public @Nullable PasswordData getPassword(UUID user, UUID id){
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            PreparedStatement statement = connection.prepareStatement("SELECT * FROM passwords WHERE pwid = ? AND user = ? AND deleted = 0");
             statement.setString(1, id.toString());
+            statement.setString(2, user.toString());
             ResultSet rs = statement.executeQuery();
             if(!rs.next()) return null;
             return new PasswordData(rs.getString("userenc"), rs.getString("pwenc"), rs.getString("site"), id);
@@ -113,11 +312,20 @@ public class MainDatabase extends SQLStorage {
     }
 
     public List<PasswordData> getAllUserPasswords(UUID user){
+        List<PasswordData> list = new ArrayList<>();
+        //callers decrypt the rows in place
+        for(PasswordData data : passwordReads.get(user, () -> queryUserPasswords(user))){
+            list.add(new PasswordData(data.username, data.password, data.site, data.id));
+        }
+        return list;
+    }
+
+    private List<PasswordData> queryUserPasswords(UUID user){
         Connection connection = null;
         List<PasswordData> list = new ArrayList<>();
         try {
             connection = getConnection();
-            PreparedStatement statement = connection.prepareStatement("SELECT * FROM passwords WHERE user = ?");
+            PreparedStatement statement = connection.prepareStatement("SELECT * FROM passwords WHERE user = ? AND deleted = 0");
             statement.setString(1, user.toString());
             ResultSet rs = statement.executeQuery();
             while (rs.next()){
@@ -141,24 +349,88 @@ public class MainDatabase extends SQLStorage {
         return list;
     }
 
-    public String saveSession(UUID user, String hash){
+    /**
+     * Passes the user's passwords to the consumer one row at a time as they are read from the cursor.
+     * @return the number of rows read
+     */
+    public int forEachUserPassword(UUID user, Consumer<PasswordData> consumer){
+        Connection connection = null;
+        int count = 0;
+        try {
+            connection = getConnection();
+            PreparedStatement statement = connection.prepareStatement("SELECT * FROM passwords WHERE user = ? AND deleted = 0");
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setString(1, user.toString());
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()){
+                consumer.accept(new PasswordData(rs.getString("userenc"), rs.getString("pwenc"), rs.getString("site"),
+                        UUID.fromString(rs.getString("pwid"))));
+                count++;
+            }
+        }
+        catch (SQLException e){
+            e.printStackTrace();
+        }
+        finally {
+            if(connection != null) {
+                try {
+                    closeConnection(connection);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param sessionId the id the client resumes the session with
+     * @param hash the Argon2 hash of the id
+     * @param lifetime seconds until the session expires
+     */
+    public String saveSession(UUID user, String sessionId, String hash, long lifetime){
         String key = KeyGenerators.string().generateKey();
-        List<String> cNames = Arrays.asList("uuid", "sessionhash", "enc");
-        List<Object> cValues = Arrays.asList(user, hash, key);
+        List<String> cNames = Arrays.asList("uuid", "sessionhash", "enc", "selector", "expires");
+        List<Object> cValues = Arrays.asList(user, hash, key, sessionSelectors.selector(sessionId), System.currentTimeMillis() + lifetime * 1000);
         insertOrUpdate("sessions", "sessionhash", cNames, cValues,cNames, cValues);
         return key;
     }
 
-    public @Nullable String getSessionEncKey(UUID user, String receivedID, Argon2PasswordEncoder encoder){
+    /**
+     * Finds the session by its selector and checks the id against its Argon2 hash. Sessions stored before selectors
+     * existed are still found by checking every one of the user's sessions without a selector, the one that matches
+     * gets its selector so it is only scanned for once.
+     * @param lifetime seconds a session found by scanning stays valid if it has no expiry time yet
+     * @return the session's key, or null if there is no such session or it has expired
+     */
+    public @Nullable String getSessionEncKey(UUID user, String receivedID, PasswordHasher encoder, long lifetime) throws PasswordHasher.BusyException {
+        String selector = sessionSelectors.selector(receivedID);
         Connection connection = null;
         try {
             connection = getConnection();
-            PreparedStatement statement = connection.prepareStatement("SELECT * FROM sessions WHERE uuid = ?");
-            statement.setString(1, user.toString());
+            PreparedStatement statement = connection.prepareStatement("SELECT sessionhash, enc FROM sessions WHERE selector = ? AND uuid = ? AND expires > ?");
+            statement.setString(1, selector);
+            statement.setString(2, user.toString());
+            statement.setLong(3, System.currentTimeMillis());
             ResultSet rs = statement.executeQuery();
             while (rs.next()){
                 if(encoder.matches(receivedID, rs.getString("sessionhash"))) return rs.getString("enc");
             }
+
+            statement = connection.prepareStatement("SELECT sessionhash, enc FROM sessions WHERE uuid = ? AND selector IS NULL AND (expires IS NULL OR expires > ?)");
+            statement.setString(1, user.toString());
+            statement.setLong(2, System.currentTimeMillis());
+            rs = statement.executeQuery();
+            while (rs.next()){
+                String hash = rs.getString("sessionhash");
+                if(!encoder.matches(receivedID, hash)) continue;
+                PreparedStatement update = connection.prepareStatement("UPDATE sessions SET selector = ?, expires = COALESCE(expires, ?) WHERE sessionhash = ?");
+                update.setString(1, selector);
+                update.setLong(2, System.currentTimeMillis() + lifetime * 1000);
+                update.setString(3, hash);
+                update.executeUpdate();
+                return rs.getString("enc");
+            }
             return null;
         }
         catch (SQLException e){
@@ -176,18 +448,22 @@ public class MainDatabase extends SQLStorage {
         return null;
     }
 
-    public @Nullable UserData fetchUserData(String username){
-
+    /**
+     * Deletes expired sessions. Sessions from before expiry times existed get one full lifetime from now.
+     * @param lifetime seconds
+     * @return the number of sessions deleted
+     */
+    public int deleteExpiredSessions(long lifetime){
         Connection connection = null;
         try {
             connection = getConnection();
-            PreparedStatement statement = connection.prepareStatement("SELECT * FROM users WHERE username = ?");
-            statement.setString(1, username);
-            ResultSet rs = statement.executeQuery();
-            if(!rs.next()) return null;
-            UUID uuid = UUID.fromString(rs.getString("uuid"));
-            Client.CryptographyData data = new Client.CryptographyData(rs.getString("salt"), rs.getString("hash"));
-            return new UserData(uuid, data);
+            long now = System.currentTimeMillis();
+            PreparedStatement statement = connection.prepareStatement("UPDATE sessions SET expires = ? WHERE expires IS NULL");
+            statement.setLong(1, now + lifetime * 1000);
+            statement.executeUpdate();
+            statement = connection.prepareStatement("DELETE FROM sessions WHERE expires < ?");
+            statement.setLong(1, now);
+            return statement.executeUpdate();
         }
         catch (SQLException e){
             e.printStackTrace();
@@ -201,8 +477,36 @@ public class MainDatabase extends SQLStorage {
                 }
             }
         }
-        return null;
+        return 0;
+    }
 
+    /**
+     * Cached for user-cache-ttl seconds, including the answer that there is no such user. Failed queries are not cached.
+     */
+    public @Nullable UserData fetchUserData(String username){
+        try {
+            return users.get(username).orElse(null);
+        }
+        catch (ExecutionException e){
+            e.getCause().printStackTrace();
+            return null;
+        }
+    }
+
+    private Optional<UserData> loadUserData(String username) throws SQLException {
+        Connection connection = getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT * FROM users WHERE username = ?");
+            statement.setString(1, username);
+            ResultSet rs = statement.executeQuery();
+            if(!rs.next()) return Optional.empty();
+            UUID uuid = UUID.fromString(rs.getString("uuid"));
+            Client.CryptographyData data = new Client.CryptographyData(rs.getString("salt"), rs.getString("hash"));
+            return Optional.of(new UserData(uuid, data));
+        }
+        finally {
+            closeConnection(connection);
+        }
     }
 
     @Data
@@ -232,6 +536,28 @@ public class MainDatabase extends SQLStorage {
     }
 
 
+    @Data
+    public static class PasswordChangeEvent{
+        private UUID user;
+        private PasswordChange change;
+
+        public PasswordChangeEvent(UUID user, PasswordChange change) {
+            this.user = user;
+            this.change = change;
+        }
+    }
+
+    public static class PasswordChange extends PasswordData{
+        public long version;
+        public boolean deleted;
+
+        public PasswordChange(String username, String password, String site, UUID uuid, long version, boolean deleted) {
+            super(username, password, site, uuid);
+            this.version = version;
+            this.deleted = deleted;
+        }
+    }
+
     public static class PasswordData{
         public String username, password, site;
         public UUID id;
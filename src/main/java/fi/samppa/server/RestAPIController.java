@@ -2,7 +2,9 @@ package fi.samppa.server;
 
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import fi.samppa.server.encryption.PasswordHasher;
 import fi.samppa.server.logs.LogType;
+import fi.samppa.server.metrics.Metrics;
 import lombok.Data;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -21,6 +23,8 @@ import org.springframework.security.crypto.encrypt.Encryptors;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.security.crypto.keygen.KeyGenerators;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -30,7 +34,10 @@ import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBo
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -40,7 +47,6 @@ public class RestAPIController {
     private final int BLOCK_SIZE = 1024;
 
     private HashMap<String, SessionData> sessions = new HashMap<>();
-    private HashMap<String, LoginAttempt> loginAttempts = new HashMap<>();
 
     private HashMap<String, ShareLink> shareLinks = new HashMap<>();
 
@@ -49,14 +55,55 @@ public class RestAPIController {
         return headers;
     }
 
+    /**
+     * Answer to a request that was shed because password hashing is overloaded.
+     */
+    private ResponseEntity<?> busyResponse(){
+        HttpHeaders headers = getResponseHeaders();
+        headers.add(HttpHeaders.RETRY_AFTER, "1");
+        return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     private boolean isAuthorized(HttpHeaders headers){
         String token = headers.getFirst("authorization");
         SessionData sessionData = sessions.get(token);
         if(sessionData == null) {
             return false;
         }
-        String ip = headers.getFirst("X-Real-IP");
-        return !Main.server.config.getBoolean("production") || sessionData.ipAddr.equals(ip);
+        return !Main.server.config.getBoolean("production") || sessionData.ipAddr.equals(clientAddress());
+    }
+
+    /**
+     * The address the current request came from. X-Real-IP is only believed when the request was made by one of the
+     * trusted-proxies, anyone else could set it to dodge the per address login limit.
+     */
+    private static String clientAddress(){
+        HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest();
+        String remote = request.getRemoteAddr();
+        String forwarded = request.getHeader("X-Real-IP");
+        if(forwarded == null) return remote;
+        for(String proxy : Main.server.config.getProperty("trusted-proxies", "").split(",")){
+            if(proxy.trim().equals(remote)) return forwarded.trim();
+        }
+        return remote;
+    }
+
+    /**
+     * Metrics are only served to requests carrying the metrics-token from the config as a bearer token, and not at
+     * all while it is empty.
+     */
+    private boolean isMetricsRequest(HttpHeaders headers){
+        String token = Main.server.config.getProperty("metrics-token", "").trim();
+        String authorization = headers.getFirst(HttpHeaders.AUTHORIZATION);
+        if(token.isEmpty() || authorization == null || !authorization.startsWith("Bearer ")) return false;
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @GetMapping("/metrics")
+    public ResponseEntity<?> getMetrics(@RequestHeader HttpHeaders headers){
+        if(!isMetricsRequest(headers)) return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        return new ResponseEntity<>(Metrics.snapshot(), getResponseHeaders(), HttpStatus.OK);
     }
 
     @GetMapping("/files/{id}")
@@ -79,6 +126,7 @@ public class RestAPIController {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
         file.delete();
+        Main.server.getThumbnails().delete(sessionData.getUserData().getUuid(), fileName);
 
         return new ResponseEntity<>(new FileData(null, sessionData.getEncryptor().decrypt(file.getName()), len, fileName),getResponseHeaders(), HttpStatus.OK);
     }
@@ -203,7 +251,11 @@ public class RestAPIController {
             fileOutputStream.write(encrypted);
         }
         fileOutputStream.close();
-        tempFile.delete();
+        fileInputStream.close();
+        //the thumbnail is made from the plaintext copy in the background, it gets a name of its own so another upload can not overwrite it
+        File source = File.createTempFile("thumbnail", null, tempFile.getParentFile());
+        Files.move(tempFile.toPath(), source.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Main.server.getThumbnails().generate(sessionData.getUserData().getUuid(), encryptedName, source, sessionData.getFileEncryptor());
     }
 
     @GetMapping("/logout")
@@ -353,7 +405,7 @@ public class RestAPIController {
         ogSize = ogSize - removed;
 
         Main.database.addLog(getSessionData(headers).getUserData().getUuid(), LogType.PASSWORD_REQUEST,
-                request.getRequestURI() + "?search="+search, request.getHeader("X-Real-IP"));
+                request.getRequestURI() + "?search="+search, clientAddress());
 
         final HttpHeaders responseHeaders = getResponseHeaders();
         responseHeaders.add("Access-Control-Expose-Headers", "X-Total-Count");
@@ -361,32 +413,53 @@ public class RestAPIController {
         return new ResponseEntity<>(passwordData, responseHeaders, HttpStatus.OK);
     }
 
+    /**
+     * The changes made to the user's passwords after the given version, see {@link MainDatabase#forEachPasswordChange}.
+     */
+    @GetMapping("/passwords/sync")
+    public ResponseEntity<?> syncPasswords(@RequestHeader HttpHeaders headers, @RequestParam(value = "since", defaultValue = "0") long since){
+        if(!isAuthorized(headers)) return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+
+        SessionData sessionData = getSessionData(headers);
+        List<MainDatabase.PasswordChange> changes = new ArrayList<>();
+        long version = Main.database.forEachPasswordChange(sessionData.getUserData().getUuid(), since, change -> {
+            if(!change.deleted){
+                change.password = sessionData.getEncryptor().decrypt(change.password);
+                change.site = sessionData.getEncryptor().decrypt(change.site);
+                change.username = sessionData.getEncryptor().decrypt(change.username);
+            }
+            changes.add(change);
+        });
+        return new ResponseEntity<>(new PasswordSync(version, changes), getResponseHeaders(), HttpStatus.OK);
+    }
+
     @PostMapping("/authenticate")
     public ResponseEntity<?> authenticateUser(HttpServletRequest request, @RequestHeader HttpHeaders headers, @RequestBody AuthData user){
+        String ip = clientAddress();
+        //counted before the lookup so unknown usernames use up the address's attempts too
+        boolean allowed = Main.server.getLoginLimiter().tryAttempt(user.getUsername(), ip);
         MainDatabase.UserData data = Main.database.fetchUserData(user.getUsername());
+        if(!allowed){
+            if(data != null) Main.database.addLog(data.getUuid(), LogType.AUTHENTICATION, "Maximum login attempts reached", ip);
+            Server.logger.warning("Too many login attempts for account " + user.getUsername() + " or from " + ip);
+            return new ResponseEntity<>(getResponseHeaders(), HttpStatus.UNAUTHORIZED);
+        }
         if(data == null) return new ResponseEntity<>(getResponseHeaders(), HttpStatus.UNAUTHORIZED);
 
-        String ip = headers.getFirst("X-Real-IP");
-        if(ip == null) ip = request.getRemoteAddr();
-        if(!loginAttempts.containsKey(user.getUsername())){
-            loginAttempts.put(user.getUsername(), new LoginAttempt());
+        boolean matches;
+        try {
+            matches = Main.server.getPasswordHasher().matches(user.password, data.getCryptographyData().hash);
         }
-        else {
-            int tries = loginAttempts.get(user.getUsername()).getAndIncrement();
-            if(tries > Main.server.config.getInt("login-attempt-limit")){
-                Main.database.addLog(data.getUuid(), LogType.AUTHENTICATION, String.format("Maximum login attempts reached (%s)", tries), ip);
-                //locking it
-                Server.logger.warning("Someone is trying to brute force account " +  user.getUsername() + ", tries = " + tries);
-                return new ResponseEntity<>(getResponseHeaders(),HttpStatus.UNAUTHORIZED);
-            }
+        catch (PasswordHasher.BusyException e){
+            return busyResponse();
         }
-
-        if(!Main.pwHasher.matches(user.password, data.getCryptographyData().hash)){
+        if(!matches){
             Main.database.addLog(data.getUuid(), LogType.AUTHENTICATION, "Failed Login", ip);
             return new ResponseEntity<>(getResponseHeaders(),HttpStatus.UNAUTHORIZED);
         }
+        Main.server.getPasswordHasher().rehash(user.password, data.getCryptographyData().hash, hash -> Main.database.updateUserHash(data.getUuid(), hash));
         Main.database.addLog(data.getUuid(), LogType.AUTHENTICATION, "Successful Login", ip);
-        loginAttempts.remove(user.getUsername());
+        Main.server.getLoginLimiter().succeeded(user.getUsername());
 
         String token = UUID.randomUUID().toString();
         sessions.put(token, new SessionData(data, Encryptors.text(user.getPassword(), data.getCryptographyData().salt),
@@ -406,12 +479,14 @@ public class RestAPIController {
         if(!isAuthorized(headers)) return new ResponseEntity<>(HttpStatus.FORBIDDEN);
 
         UUID uuid = UUID.fromString(id);
-        MainDatabase.PasswordData passwordData = Main.database.getPassword(uuid);
-
-        Main.database.deletePassword(uuid);
         SessionData sessionData = getSessionData(headers);
-        Main.database.addLog(getSessionData(headers).getUserData().getUuid(), LogType.PASSWORD_DELETE,
-                "Site: " + sessionData.getEncryptor().decrypt(passwordData.site), headers.getFirst("X-Real-IP"));
+        UUID user = sessionData.getUserData().getUuid();
+        MainDatabase.PasswordData passwordData = Main.database.getPassword(user, uuid);
+        if(passwordData == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+
+        Main.database.deletePassword(user, uuid);
+        Main.database.addLog(user, LogType.PASSWORD_DELETE,
+                "Site: " + sessionData.getEncryptor().decrypt(passwordData.site), clientAddress());
 
         return new ResponseEntity<>(passwordData, getResponseHeaders(), HttpStatus.OK);
     }
@@ -425,9 +500,10 @@ public class RestAPIController {
                 sessionData.getEncryptor().encrypt(data.password),
                 sessionData.getEncryptor().encrypt(data.username),
                 sessionData.getEncryptor().encrypt(data.site));
+        if(passwordData == null) return new ResponseEntity<>(getResponseHeaders(), HttpStatus.INTERNAL_SERVER_ERROR);
 
         Main.database.addLog(getSessionData(headers).getUserData().getUuid(), LogType.PASSWORD_CREATE,
-                "Site: " + data.site, headers.getFirst("X-Real-IP"));
+                "Site: " + data.site, clientAddress());
 
         return new ResponseEntity<>(passwordData, getResponseHeaders(), HttpStatus.OK);
     }
@@ -438,7 +514,12 @@ public class RestAPIController {
         if(data != null){
             return new ResponseEntity<>(HttpStatus.CONFLICT);
         }
-        Main.database.saveUser(user.getUsername(), Main.pwHasher.encode(user.getPassword()));
+        try {
+            Main.database.saveUser(user.getUsername(), Main.server.getPasswordHasher().encode(user.getPassword()));
+        }
+        catch (PasswordHasher.BusyException e){
+            return busyResponse();
+        }
         return new ResponseEntity<>(Arrays.asList(user), getResponseHeaders(), HttpStatus.OK);
     }
 
@@ -453,26 +534,6 @@ public class RestAPIController {
         }
     }
 
-    @Data
-    static class LoginAttempt{
-        private int tries = 0;
-        private long lastTime = System.currentTimeMillis();
-
-        public int getAndIncrement(){
-            // 10 minutes
-            int configReset = Main.server.config.getInt("login-attempts-reset-time");
-            long secondsSince = ((System.currentTimeMillis() - lastTime) / 1000);
-            lastTime = System.currentTimeMillis();
-            if(secondsSince > configReset * 60L){
-                tries = 0;
-            }
-            else {
-                tries++;
-            }
-            return tries;
-        }
-    }
-
     @Data
     static class FileInfo{
         private String downloadUrl;
@@ -495,6 +556,17 @@ public class RestAPIController {
         }
     }
 
+    @Data
+    static class PasswordSync{
+        private long version;
+        private List<MainDatabase.PasswordChange> changes;
+
+        public PasswordSync(long version, List<MainDatabase.PasswordChange> changes) {
+            this.version = version;
+            this.changes = changes;
+        }
+    }
+
     @Data
     static class FileData{
         @JsonIgnore
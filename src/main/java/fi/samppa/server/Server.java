@@ -1,19 +1,67 @@
 package fi.samppa.server;
 
 
+import com.google.common.eventbus.Subscribe;
+import fi.samppa.server.clienthandling.AdmissionControl;
 import fi.samppa.server.clienthandling.Client;
 import fi.samppa.server.clienthandling.ClientListener;
+import fi.samppa.server.clienthandling.Heartbeats;
+import fi.samppa.server.clienthandling.LoginLimiter;
+import fi.samppa.server.clienthandling.OutboundQueue;
+import fi.samppa.server.clienthandling.SocketConnection;
+import fi.samppa.server.clienthandling.protocol.FrameCompression;
+import fi.samppa.server.clienthandling.protocol.Protocol;
+import fi.samppa.server.clienthandling.nio.NioConnection;
+import fi.samppa.server.clienthandling.nio.NioTransport;
 import fi.samppa.server.config.Config;
+import fi.samppa.server.encryption.KeyExchangePool;
+import fi.samppa.server.encryption.PasswordHasher;
+import fi.samppa.server.files.Thumbnails;
+import fi.samppa.server.encryption.ResumptionTickets;
 import fi.samppa.server.sql.SQLStorage;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class Server extends Thread{
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+
+    //null when running the thread per connection transport
+    private NioTransport nioTransport;
+
+    private final boolean virtualThreads;
+
+    private final KeyExchangePool keyExchangePool;
+
+    private final ResumptionTickets resumptionTickets;
+
+    private final FrameCompression compression;
+
+    private final Thumbnails thumbnails;
+
+    private final Heartbeats heartbeats;
+
+    private final AdmissionControl admissionControl;
+
+    private final LoginLimiter loginLimiter;
+
+    private final PasswordHasher passwordHasher;
+
+    private final OutboundQueue.Limits outboundLimits;
+    //writes the queued frames of blocking connections
+    private final ExecutorService writers;
     public static Logger logger = Logger.getLogger("fi.samppa");
 
     public static String DATA_FOLDER = "data/";
@@ -22,28 +70,151 @@ public class Server extends Thread{
 
     public Config config;
 
-    private HashMap<String, Client> users = new HashMap<>();
+    //every live connection of a user, one per device
+    private final ConcurrentHashMap<String, Set<Client>> users = new ConcurrentHashMap<>();
+    //the same connections by user uuid, used to push changes made by the database
+    private final ConcurrentHashMap<UUID, Set<Client>> usersByUuid = new ConcurrentHashMap<>();
 
     public Server(MainDatabase mainDatabase){
         config = Config.initConfig(DATA_FOLDER, "config.properties");
         this.database = mainDatabase;
+        mainDatabase.getChangeBus().register(this);
+        this.virtualThreads = useVirtualThreads(config);
+        this.keyExchangePool = new KeyExchangePool(config.getInt("keyexchange-pool-size"), config.getInt("keyexchange-pool-threads"));
+        this.resumptionTickets = new ResumptionTickets(config.getInt("resumption-ticket-lifetime"), config.getInt("resumption-replay-cache-size"));
+        this.compression = new FrameCompression(config.getInt("compression-threshold"), config.getInt("max-frame-size"));
+        this.passwordHasher = new PasswordHasher(new PasswordHasher.Parameters(config.getInt("argon2-memory"),
+                config.getInt("argon2-iterations"), config.getInt("argon2-parallelism")), config.getInt("argon2-threads"), config.getInt("argon2-queue"));
+        this.admissionControl = new AdmissionControl(config.getInt("max-connections"), config.getInt("max-connections-per-ip"),
+                config.getDouble("connection-rate-per-ip"), config.getInt("connection-burst-per-ip"), config.getInt("connection-rate-tracked-ips"));
+        this.loginLimiter = new LoginLimiter(config.getInt("login-attempt-limit"), config.getInt("login-attempt-limit-per-ip"),
+                config.getLong("login-attempts-reset-time") * 60, config.getInt("login-attempts-tracked"));
+        this.heartbeats = new Heartbeats(config.getInt("heartbeat-interval"), config.getInt("heartbeat-missed-limit"),
+                config.getInt("authentication-deadline"));
+        this.thumbnails = new Thumbnails(config.getInt("thumbnail-size"), config.getLong("thumbnail-max-pixels"),
+                config.getInt("thumbnail-threads"), config.getInt("thumbnail-queue"), config.getInt("thumbnail-decrypt-threads"),
+                config.getLong("thumbnail-cache-bytes"));
+        this.outboundLimits = new OutboundQueue.Limits(config.getInt("outbound-queue-frames"), config.getInt("outbound-queue-bytes"),
+                OutboundQueue.SlowConsumerPolicy.valueOf(config.getProperty("slow-consumer-policy").toUpperCase()));
+        this.writers = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        scheduleSessionCleanup(config.getLong("session-lifetime"), config.getLong("session-cleanup-interval"));
+    }
+
+    private void scheduleSessionCleanup(long lifetime, long interval){
+        ScheduledExecutorService cleanup = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleanup.scheduleWithFixedDelay(() -> {
+            int deleted = database.deleteExpiredSessions(lifetime);
+            if(deleted > 0) System.out.println("Deleted " + deleted + " expired sessions");
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return true if thread-mode is set to virtual and the running JVM supports virtual threads
+     */
+    public static boolean useVirtualThreads(Config config){
+        if(!config.getProperty("thread-mode").equalsIgnoreCase("virtual")) return false;
+        if(!VirtualThreads.isSupported()){
+            logger.warning("thread-mode is set to virtual but this JVM does not support virtual threads, using platform threads");
+            return false;
+        }
+        return true;
     }
 
     public void addUser(String username, Client client){
-        users.put(username, client);
+        addConnection(users, username, client);
+        addConnection(usersByUuid, client.getUuid(), client);
+    }
+
+    private static <K> void addConnection(ConcurrentHashMap<K, Set<Client>> map, K key, Client client){
+        map.compute(key, (k, clients) -> {
+            if(clients == null) clients = ConcurrentHashMap.newKeySet();
+            clients.add(client);
+            return clients;
+        });
+    }
+
+    private static <K> void removeConnection(ConcurrentHashMap<K, Set<Client>> map, K key, Client client){
+        map.computeIfPresent(key, (k, clients) -> {
+            clients.remove(client);
+            return clients.isEmpty() ? null : clients;
+        });
+    }
+
+    /**
+     * @return the user's live connections, empty if the user is not connected
+     */
+    public Set<Client> getUser(String user){
+        Set<Client> clients = users.get(user);
+        return clients != null ? clients : Collections.emptySet();
     }
 
-    public Client getUser(String user){
-        return users.get(user);
+    /**
+     * Removes one connection of the user, the user is removed together with its last connection.
+     */
+    public void removeUser(String user, Client client){
+        removeConnection(users, user, client);
+        removeConnection(usersByUuid, client.getUuid(), client);
     }
 
-    public void removeUser(String user){
-        users.remove(user);
+    /**
+     * @return the live connections of the user with the given uuid, empty if the user is not connected
+     */
+    public Set<Client> getConnections(UUID user){
+        Set<Client> clients = usersByUuid.get(user);
+        return clients != null ? clients : Collections.emptySet();
+    }
+
+    /**
+     * Pushes a change to a password to every connection of its owner that asked for it.
+     */
+    @Subscribe
+    public void onPasswordChange(MainDatabase.PasswordChangeEvent event){
+        for(Client client : getConnections(event.getUser())){
+            if(client.hasFeature(Protocol.FEATURE_PUSH)) client.getHandler().sendPasswordChange(event.getChange());
+        }
     }
 
     public void bind(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        System.out.println("Listening on port " + port);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        if(config.getProperty("transport").equalsIgnoreCase("nio")){
+            nioTransport = new NioTransport(config.getInt("nio-loop-threads"), config.getInt("nio-worker-threads"),
+                    config.getInt("max-frame-size"), config.getInt("inbound-queue-frames"), config.getLong("inbound-queue-bytes"), outboundLimits);
+            nioTransport.start();
+        }
+        System.out.println("Listening on port " + port + (nioTransport != null ? " (nio)" : ""));
+    }
+
+    public ResumptionTickets getResumptionTickets() {
+        return resumptionTickets;
+    }
+
+    public FrameCompression getCompression() {
+        return compression;
+    }
+
+    public Thumbnails getThumbnails() {
+        return thumbnails;
+    }
+
+    public Heartbeats getHeartbeats() {
+        return heartbeats;
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public LoginLimiter getLoginLimiter() {
+        return loginLimiter;
+    }
+
+    public PasswordHasher getPasswordHasher() {
+        return passwordHasher;
     }
 
     public Set<String> getUsers(){
@@ -51,22 +222,83 @@ public class Server extends Thread{
     }
 
     public Collection<Client> getClients(){
-        return users.values();
+        return users.values().stream().flatMap(Set::stream).collect(Collectors.toList());
     }
 
-    @Override
-    public void run() {
+    /**
+     * Closes the channel unless {@link AdmissionControl} lets it in.
+     * @return the address the admitted connection counts against, or null if it was refused and closed
+     */
+    private InetAddress admit(SocketChannel channel){
         try {
-            while (true){
-                Socket clientSocket = serverSocket.accept();
-                Client client = new Client(clientSocket);
-                ClientListener clientListener = new ClientListener(this, client);
-                clientListener.start();
-                System.out.println("Client connected from " + client.getClientSocket().getInetAddress().getHostAddress());
-            }
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            if(admissionControl.admit(address)) return address;
         }
-        catch (Exception e){
+        catch (IOException e){
             e.printStackTrace();
         }
+        closeQuietly(channel);
+        return null;
+    }
+
+    private static void closeQuietly(SocketChannel channel){
+        try {
+            channel.close();
+        }
+        catch (IOException ignored){
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true){
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            }
+            catch (ClosedChannelException e){
+                return;
+            }
+            catch (IOException e){
+                //e.g. out of file descriptors, the next accept may succeed
+                e.printStackTrace();
+                continue;
+            }
+            //checked before any key exchange or thread is set up for the connection
+            InetAddress address = admit(channel);
+            if(address == null) continue;
+            ClientListener listener = null;
+            try {
+                //the OS probes idle connections of clients that do not send heartbeats
+                channel.socket().setKeepAlive(true);
+                Client client;
+                if(nioTransport != null){
+                    NioConnection connection = nioTransport.newConnection(channel);
+                    client = new Client(connection, keyExchangePool.poll());
+                    listener = new ClientListener(this, client);
+                    connection.setListener(listener);
+                    connection.register();
+                }
+                else {
+                    client = new Client(new SocketConnection(channel, writers, outboundLimits), keyExchangePool.poll());
+                    listener = new ClientListener(this, client);
+                    if(virtualThreads) VirtualThreads.start(listener);
+                    else new Thread(listener).start();
+                }
+                heartbeats.track(client);
+                System.out.println("Client connected from " + address.getHostAddress());
+            }
+            catch (Exception e){
+                //one failed connection must not end the accept loop or keep its admission slot
+                e.printStackTrace();
+                if(listener != null){
+                    listener.disconnectUser("Connection setup failed");
+                }
+                else {
+                    admissionControl.release(address);
+                    closeQuietly(channel);
+                }
+            }
+        }
     }
 }
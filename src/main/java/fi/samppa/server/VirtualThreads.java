@@ -0,0 +1,70 @@
+package fi.samppa.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the Java 21 virtual thread API while the build still targets an older release.
+ * When the running JVM does not have them, platform threads are used instead.
+ */
+public final class VirtualThreads {
+    private static final MethodHandle START_VIRTUAL_THREAD;
+    private static final MethodHandle NEW_VIRTUAL_EXECUTOR;
+
+    static {
+        MethodHandle start = null;
+        MethodHandle executor = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            start = lookup.findStatic(Thread.class, "startVirtualThread", MethodType.methodType(Thread.class, Runnable.class));
+            executor = lookup.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ignored) {
+            //running on a JVM older than 21
+        }
+        START_VIRTUAL_THREAD = start;
+        NEW_VIRTUAL_EXECUTOR = executor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported(){
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Starts the runnable on a virtual thread, or on a new platform thread if they are not supported.
+     */
+    public static Thread start(Runnable runnable){
+        if(isSupported()){
+            try {
+                return (Thread) START_VIRTUAL_THREAD.invokeExact(runnable);
+            }
+            catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+        Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return an executor that runs every task on its own virtual thread, or a cached platform thread pool
+     */
+    public static ExecutorService newThreadPerTaskExecutor(){
+        if(NEW_VIRTUAL_EXECUTOR != null){
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invokeExact();
+            }
+            catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
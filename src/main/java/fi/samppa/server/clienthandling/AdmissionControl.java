@@ -0,0 +1,100 @@
+package fi.samppa.server.clienthandling;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import fi.samppa.server.metrics.Metrics;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides on the accept path whether a new connection is let in, before anything is allocated for it.
+ * <p>
+ * Every source address gets a token bucket of connection attempts, then the connection has to fit under the
+ * global and the per address connection caps. Buckets live in a bounded cache and are forgotten once they
+ * would have refilled completely, which is the same as keeping them.
+ */
+public class AdmissionControl {
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final double ratePerNano;
+    private final int burst;
+
+    private final AtomicInteger open = new AtomicInteger();
+    //only holds addresses with open connections, so it is bounded by the global cap
+    private final ConcurrentHashMap<InetAddress, Integer> openByAddress = new ConcurrentHashMap<>();
+    private final Cache<InetAddress, TokenBucket> buckets;
+
+    private final LongAdder rejectedGlobal = Metrics.counter("admission.rejected-global");
+    private final LongAdder rejectedAddress = Metrics.counter("admission.rejected-per-ip");
+    private final LongAdder rejectedRate = Metrics.counter("admission.rejected-rate");
+
+    /**
+     * @param ratePerSecond connection attempts an address may make per second in the long run
+     * @param burst connection attempts an address may make at once
+     * @param trackedAddresses most addresses a bucket is kept for
+     */
+    public AdmissionControl(int maxConnections, int maxPerAddress, double ratePerSecond, int burst, int trackedAddresses) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.buckets = CacheBuilder.newBuilder()
+                .maximumSize(trackedAddresses)
+                .expireAfterAccess((long) Math.ceil(burst / ratePerSecond), TimeUnit.SECONDS)
+                .build();
+        Metrics.gauge("admission.open-connections", open::get);
+        Metrics.gauge("admission.tracked-ips", buckets::size);
+    }
+
+    /**
+     * Must be followed by {@link #release(InetAddress)} when an admitted connection closes.
+     * @return false if the connection must be closed right away
+     */
+    public boolean admit(InetAddress address){
+        if(!buckets.asMap().computeIfAbsent(address, a -> new TokenBucket()).tryAcquire()){
+            rejectedRate.increment();
+            return false;
+        }
+        if(open.incrementAndGet() > maxConnections){
+            open.decrementAndGet();
+            rejectedGlobal.increment();
+            return false;
+        }
+        boolean[] admitted = {false};
+        openByAddress.compute(address, (a, count) -> {
+            int current = count != null ? count : 0;
+            if(current >= maxPerAddress) return count;
+            admitted[0] = true;
+            return current + 1;
+        });
+        if(!admitted[0]){
+            open.decrementAndGet();
+            rejectedAddress.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void release(InetAddress address){
+        open.decrementAndGet();
+        openByAddress.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private class TokenBucket {
+        private double tokens = burst;
+        private long refilledAt = System.nanoTime();
+
+        synchronized boolean tryAcquire(){
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+            if(tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+    }
+}
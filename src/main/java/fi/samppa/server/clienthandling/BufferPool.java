@@ -0,0 +1,48 @@
+package fi.samppa.server.clienthandling;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of frame sized byte arrays, bucketed by powers of two so any frame up to the maximum
+ * frame size can borrow an array instead of allocating one.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 9; //512 bytes
+    //upper bound for the bytes kept idle in a single bucket
+    private static final int BUCKET_BYTES = 4 << 20;
+
+    private final int maxShift;
+    private final ArrayBlockingQueue<byte[]>[] buckets;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxSize) {
+        this.maxShift = Math.max(MIN_SHIFT, shiftFor(maxSize));
+        this.buckets = new ArrayBlockingQueue[maxShift - MIN_SHIFT + 1];
+        for(int i = 0; i < buckets.length; i++){
+            int count = Math.max(2, Math.min(256, BUCKET_BYTES >> (MIN_SHIFT + i)));
+            buckets[i] = new ArrayBlockingQueue<>(count);
+        }
+    }
+
+    private static int shiftFor(int size){
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * @return an array of at least the given size, possibly with leftover contents
+     */
+    public byte[] acquire(int size){
+        int shift = Math.max(MIN_SHIFT, shiftFor(size));
+        if(shift > maxShift) return new byte[size];
+        byte[] buffer = buckets[shift - MIN_SHIFT].poll();
+        return buffer != null ? buffer : new byte[1 << shift];
+    }
+
+    public void release(byte[] buffer){
+        int length = buffer.length;
+        if(Integer.bitCount(length) != 1) return; //not from this pool
+        int shift = Integer.numberOfTrailingZeros(length);
+        if(shift < MIN_SHIFT || shift > maxShift) return;
+        buckets[shift - MIN_SHIFT].offer(buffer);
+    }
+}
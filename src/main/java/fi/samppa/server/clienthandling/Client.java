@@ -4,37 +4,66 @@ package fi.samppa.server.clienthandling;
 
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
+import fi.samppa.server.clienthandling.protocol.FrameCompression;
+import fi.samppa.server.clienthandling.protocol.Opcode;
+import fi.samppa.server.clienthandling.protocol.Protocol;
 import fi.samppa.server.encryption.AESSecurityCap;
+import fi.samppa.server.encryption.SessionCipher;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Client {
-    private final Socket clientSocket;
+    private final Connection connection;
+    //kept because the socket no longer knows it once it is closed
+    private final InetAddress address;
 
     private UUID uuid;
     private String username;
 
-    private boolean authenticated = false;
-    private boolean connectionSecured = false;
+    //read by disconnects on other threads, set after the user's fields so they are visible with it
+    private volatile boolean authenticated = false;
+    //the handshake state below is written by the listener and read by the heartbeat wheel and pushes
+    private volatile boolean connectionSecured = false;
     private boolean inSession = false;
 
+    private volatile int protocolVersion = Protocol.LEGACY_VERSION;
+    private volatile int features = 0;
+
     private CryptographyData cryptographyData;
 
     private ClientListener handler;
 
-    private int ping = 0;
-
-    private DataOutputStream dOut;
-
-    private AESSecurityCap aesSecurityCap = new AESSecurityCap();
-
-    public Client(Socket clientSocket) throws IOException {
-        this.clientSocket = clientSocket;
-        this.dOut = new DataOutputStream(clientSocket.getOutputStream());
+    //milliseconds, the round trip of the last heartbeat
+    private volatile int ping = 0;
+
+    private final long connectedAt = System.nanoTime();
+    //System.nanoTime() when the last frame was received
+    private volatile long lastActivity = connectedAt;
+
+    //created lazily on the listener thread when the pool had none ready
+    private volatile AESSecurityCap aesSecurityCap;
+    //null unless the client negotiated AES-GCM
+    private volatile SessionCipher sessionCipher;
+    //null unless the client negotiated compression
+    private volatile FrameCompression compression;
+    //keeps the encryption order equal to the order frames are queued
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /**
+     * @param aesSecurityCap a prepared key exchange, or null to generate one when it is first needed
+     */
+    public Client(Connection connection, AESSecurityCap aesSecurityCap) {
+        this.connection = connection;
+        this.address = connection.getSocket().getInetAddress();
+        this.aesSecurityCap = aesSecurityCap;
     }
 
     public void setUuid(UUID uuid) {
@@ -62,10 +91,55 @@ public class Client {
         this.connectionSecured = connectionSecured;
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public boolean hasFeature(int feature){
+        return (features & feature) != 0;
+    }
+
+    public void setProtocol(int protocolVersion, int features) {
+        //features first, so whoever sees the new version also sees what was negotiated with it
+        this.features = features;
+        this.protocolVersion = protocolVersion;
+    }
+
+    public boolean isBinaryProtocol(){
+        return protocolVersion >= Protocol.BINARY_VERSION;
+    }
+
+    /**
+     * @return a new frame starting with the header of the given opcode in the negotiated protocol
+     */
+    public ByteArrayDataOutput newPacket(Opcode opcode){
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        if(isBinaryProtocol()) out.writeByte(opcode.getId());
+        else out.writeUTF(opcode.getName());
+        return out;
+    }
+
+    public void setSessionCipher(SessionCipher sessionCipher) {
+        this.sessionCipher = sessionCipher;
+    }
+
+    public void setCompression(FrameCompression compression) {
+        this.compression = compression;
+    }
+
     public AESSecurityCap getAesSecurityCap() {
+        if(aesSecurityCap == null) aesSecurityCap = new AESSecurityCap();
         return aesSecurityCap;
     }
 
+    public void setAesSecurityCap(AESSecurityCap aesSecurityCap) {
+        this.aesSecurityCap = aesSecurityCap;
+    }
+
     public void setHandler(ClientListener handler) {
         this.handler = handler;
     }
@@ -83,18 +157,104 @@ public class Client {
         this.ping = ping;
     }
 
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void markActivity() {
+        this.lastActivity = System.nanoTime();
+    }
+
     public void sendData(byte[] data) {
+        sendLock.lock();
         try {
-            dOut.writeInt(data.length); //writing length
-            dOut.write(data);
+            if(!connection.admit(data.length, OutboundQueue.Lane.CONTROL, false)) return;
+            connection.writeFrame(data);
         } catch (IOException e) {
             e.printStackTrace();
             closeSocket();
         }
+        finally {
+            sendLock.unlock();
+        }
     }
 
     public void sendEncrypted(byte[] data){
-        sendData(aesSecurityCap.encryptBytes(data));
+        sendEncrypted(data, OutboundQueue.Lane.CONTROL);
+    }
+
+    /**
+     * @param lane {@link OutboundQueue.Lane#BULK} for file data that interactive frames may overtake, only used
+     *             if the client negotiated {@link Protocol#FEATURE_LANES}
+     */
+    public void sendEncrypted(byte[] data, OutboundQueue.Lane lane){
+        sendEncrypted(data, lane, false);
+    }
+
+    /**
+     * @param droppable true only for frames the client can do without, like channel messages and heartbeats, they are
+     *                  the only ones the drop slow consumer policy may drop
+     */
+    public void sendEncrypted(byte[] data, OutboundQueue.Lane lane, boolean droppable){
+        boolean lanes = hasFeature(Protocol.FEATURE_LANES);
+        if(!lanes) lane = OutboundQueue.Lane.CONTROL;
+        sendLock.lock();
+        try {
+            //checked before encrypting so a dropped frame does not use up a GCM nonce
+            if(!connection.admit(data.length, lane, droppable)) return;
+            //read once, the handshake may set them on another thread while a heartbeat is sent
+            FrameCompression compression = this.compression;
+            SessionCipher sessionCipher = this.sessionCipher;
+            if(compression != null) data = compression.pack(data);
+            byte[] encrypted;
+            if(sessionCipher == null) encrypted = getAesSecurityCap().encryptRaw(data);
+            else if(lane == OutboundQueue.Lane.BULK) encrypted = sessionCipher.encryptBulk(data);
+            else encrypted = sessionCipher.encrypt(data);
+            if(!hasFeature(Protocol.FEATURE_RAW_CIPHERTEXT)) encrypted = Base64.getEncoder().encode(encrypted);
+            if(lanes){
+                byte[] frame = new byte[encrypted.length + 1];
+                frame[0] = (byte) lane.ordinal();
+                System.arraycopy(encrypted, 0, frame, 1, encrypted.length);
+                encrypted = frame;
+            }
+            connection.writeFrame(encrypted, lane);
+        }
+        catch (GeneralSecurityException | IOException e){
+            e.printStackTrace();
+            closeSocket();
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Decrypts a frame received from this client, in the ciphertext encoding negotiated for the connection.
+     */
+    public byte[] decrypt(byte[] data, int offset, int length) throws IOException {
+        if(!hasFeature(Protocol.FEATURE_RAW_CIPHERTEXT)){
+            ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(data, offset, length));
+            data = decoded.array();
+            offset = decoded.arrayOffset() + decoded.position();
+            length = decoded.remaining();
+        }
+        SessionCipher sessionCipher = this.sessionCipher;
+        FrameCompression compression = this.compression;
+        byte[] decrypted;
+        if(sessionCipher == null) decrypted = getAesSecurityCap().decryptRaw(data, offset, length);
+        else {
+            try {
+                decrypted = sessionCipher.decrypt(data, offset, length);
+            }
+            catch (GeneralSecurityException e){
+                throw new IOException("Could not decrypt frame", e);
+            }
+        }
+        return compression != null ? compression.unpack(decrypted) : decrypted;
     }
 
 
@@ -104,23 +264,30 @@ public class Client {
     }
 
     public void sendChannelMessage(String message){
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF("message");
+        ByteArrayDataOutput out = newPacket(Opcode.MESSAGE);
         out.writeUTF(message);
-        sendEncrypted(out.toByteArray());
+        sendEncrypted(out.toByteArray(), OutboundQueue.Lane.CONTROL, true);
     }
 
     public void sendFileData(byte[] data){
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF("file-data");
+        ByteArrayDataOutput out = newPacket(Opcode.FILE_DATA);
         out.writeInt(data.length);
         out.write(data);
-        sendEncrypted(out.toByteArray());
+        sendEncrypted(out.toByteArray(), OutboundQueue.Lane.BULK);
     }
 
     public void sendCustomData(String channel, byte[] data){
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(channel);
+        Opcode opcode = Opcode.fromName(channel);
+        ByteArrayDataOutput out;
+        if(!isBinaryProtocol()){
+            out = ByteStreams.newDataOutput();
+            out.writeUTF(channel);
+        }
+        else if(opcode != null) out = newPacket(opcode);
+        else {
+            out = newPacket(Opcode.CUSTOM);
+            out.writeUTF(channel);
+        }
         out.writeInt(data.length);
         out.write(data);
         sendEncrypted(out.toByteArray());
@@ -152,20 +319,23 @@ public class Client {
     }
 
     public void closeSocket(){
-        try {
-            clientSocket.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        connection.close();
+    }
+
+    public Connection getConnection() {
+        return connection;
     }
 
     public Socket getClientSocket() {
-        return clientSocket;
+        return connection.getSocket();
+    }
+
+    public InetAddress getAddress() {
+        return address;
     }
 
     public boolean isClosed(){
-        return clientSocket.isClosed();
+        return connection.isClosed();
     }
 
     @Override
@@ -173,12 +343,12 @@ public class Client {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Client client = (Client) o;
-        return client.getClientSocket().equals(this.clientSocket);
+        return client.getConnection().equals(this.connection);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(clientSocket);
+        return Objects.hash(connection);
     }
 
     public static class CryptographyData{
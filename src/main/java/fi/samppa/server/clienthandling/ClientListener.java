@@ -5,49 +5,77 @@ import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
 
-import com.ning.compress.lzf.LZFDecoder;
 import fi.samppa.server.*;
+import fi.samppa.server.clienthandling.protocol.Opcode;
+import fi.samppa.server.clienthandling.protocol.PacketHandler;
+import fi.samppa.server.clienthandling.protocol.Protocol;
 import fi.samppa.server.encryption.AESSecurityCap;
+import fi.samppa.server.encryption.PasswordHasher;
+import fi.samppa.server.encryption.ResumptionTickets;
+import fi.samppa.server.encryption.SessionCipher;
 import org.checkerframework.checker.units.qual.A;
 import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
 import org.springframework.security.crypto.encrypt.BytesEncryptor;
 import org.springframework.security.crypto.encrypt.Encryptors;
 
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
 import java.io.*;
-import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClientListener implements Runnable{
+    //indexed by opcode id
+    private static final PacketHandler[] HANDLERS = new PacketHandler[256];
+
+    static {
+        register(Opcode.SESSION_KEY, ClientListener::handleSessionKey);
+        register(Opcode.AUTHENTICATION, ClientListener::handleAuthentication);
+        register(Opcode.REGISTRATION, ClientListener::handleRegistration);
+        register(Opcode.MESSAGE, ClientListener::handleMessageRoute);
+        register(Opcode.CREATE_SESSION, ClientListener::handleCreateSession);
+        register(Opcode.SAVE_PASSWORD, ClientListener::handleSavePassword);
+        register(Opcode.INSTRUCTION, ClientListener::handleInstruction);
+        register(Opcode.DELETE_PASSWORD, ClientListener::handleDeletePassword);
+        register(Opcode.SYNC_PASSWORDS, ClientListener::handleSyncPasswords);
+        register(Opcode.FILE_REQUEST, ClientListener::handleFileRequest);
+        register(Opcode.FILE_ACK, ClientListener::handleFileAck);
+        register(Opcode.HEARTBEAT, ClientListener::handleHeartbeat);
+        register(Opcode.HEARTBEAT_ACK, ClientListener::handleHeartbeatAck);
+    }
+
+    private static void register(Opcode opcode, PacketHandler handler){
+        HANDLERS[opcode.getId()] = handler;
+    }
 
-public class ClientListener extends Thread{
     //used to encrypt the files
     private BytesEncryptor bytesEncryptor;
 
     private Client client;
     private Server server;
 
-    private boolean disconnected = false;
-
-    private final DataInputStream dIn;
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
 
+    private final ConcurrentHashMap<Integer, FileTransfer> transfers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTransferId = new AtomicInteger(1);
 
-
-    public ClientListener(Server server, Client client) throws Exception {
+    public ClientListener(Server server, Client client) {
         this.client = client;
         this.server = server;
-        this.dIn = new DataInputStream(client.getClientSocket().getInputStream());
         client.setHandler(this);
     }
 
-    private void disconnectUser(String reason){
-        if(disconnected) return;
-        disconnected = true;
-        server.removeUser(client.getUsername());
+    public void disconnectUser(String reason){
+        if(!disconnected.compareAndSet(false, true)) return;
+        server.getHeartbeats().untrack(client);
+        server.getAdmissionControl().release(client.getAddress());
+        if(client.isAuthenticated()) server.removeUser(client.getUsername(), client);
         client.closeSocket();
+        transfers.values().forEach(FileTransfer::close);
+        transfers.clear();
         System.out.println(String.format("User (%s) disconnected. (%s)", client.getUsername(), reason));
     }
 
@@ -59,8 +87,7 @@ public class ClientListener extends Thread{
     }
 
     public void sendAuthenticationStatus(AuthStatus status, String password, String salt){
-        ByteArrayDataOutput output = ByteStreams.newDataOutput();
-        output.writeUTF("authentication");
+        ByteArrayDataOutput output = client.newPacket(Opcode.AUTHENTICATION);
         output.writeUTF(status.name());
         if(status == AuthStatus.OK){
             output.writeUTF(salt);
@@ -71,17 +98,18 @@ public class ClientListener extends Thread{
 
     public void authenticateUser(String username, String password, MainDatabase.UserData data){
         client.setUsername(username);
-        client.setAuthenticated();
         client.setCryptographyData(data.getCryptographyData());
         client.setUuid(data.getUuid());
+        client.setAuthenticated();
         server.addUser(username, client);
+        //a disconnect that ran before addUser could not remove the client yet, so it is removed here instead
+        if(disconnected.get()) server.removeUser(username, client);
         bytesEncryptor = Encryptors.standard(password, data.getCryptographyData().salt);
     }
 
     public void sendFileList(){
         File file = new File("user_files/"+client.getUsername());
-        ByteArrayDataOutput output = ByteStreams.newDataOutput();
-        output.writeUTF("host-list");
+        ByteArrayDataOutput output = client.newPacket(Opcode.HOST_LIST);
         String[] list = file.list((dir, name) -> !new File(dir, name).isDirectory());
         String result = list == null ? "" : String.join("\n", list);
         output.writeUTF(result);
@@ -89,202 +117,438 @@ public class ClientListener extends Thread{
     }
 
     public void sendFileInfo(File file){
-        ByteArrayDataOutput output = ByteStreams.newDataOutput();
-        output.writeUTF("file-info");
+        ByteArrayDataOutput output = client.newPacket(Opcode.FILE_INFO);
         output.writeUTF(file.getName());
         output.writeLong(file.length());
         client.sendEncrypted(output.toByteArray());
     }
 
-    public void sendThumbnail(File file) throws IOException {
-        ByteArrayDataOutput output = ByteStreams.newDataOutput();
-        output.writeUTF("host-file-thumbnail");
-        output.writeUTF(file.getName());
-
-        byte[] data = bytesEncryptor.decrypt(Files.readAllBytes(file.toPath()));
+    public void sendThumbnail(String name, byte[] data){
+        ByteArrayDataOutput output = client.newPacket(Opcode.HOST_FILE_THUMBNAIL);
+        output.writeUTF(name);
         output.writeInt(data.length);
         output.write(data);
-        client.sendEncrypted(output.toByteArray());
-    }
-
-    public void sendFileListThumbnails() throws IOException {
-        File folder = new File("user_files/"+client.getUsername()+"/thumbs");
-        File[] list = folder.listFiles();
-        if(list == null) return;
-        for(File file : list){
-            sendThumbnail(file);
-        }
-    }
-
-    private BufferedImage scale(BufferedImage source, double ratio) {
-        int w = (int)(source.getWidth() * ratio);
-        int h = (int)(source.getHeight() * ratio);
-        BufferedImage bi = getCompatibleImage(w, h);
-        Graphics2D g2d = bi.createGraphics();
-        double xScale = w / source.getWidth();
-        double yScale = h / source.getHeight();
-        AffineTransform at = AffineTransform.getScaleInstance(xScale, yScale);
-        g2d.drawRenderedImage(source, at);
-        g2d.dispose();
-        return bi;
+        client.sendEncrypted(output.toByteArray(), OutboundQueue.Lane.BULK);
     }
 
-    private BufferedImage getCompatibleImage(int w, int h) {
-        GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        GraphicsDevice gd = ge.getDefaultScreenDevice();
-        GraphicsConfiguration gc = gd.getDefaultConfiguration();
-        BufferedImage image = gc.createCompatibleImage(w, h);
-        return image;
+    /**
+     * Sends the thumbnail of every file that has one, in the order they are decrypted.
+     */
+    public void sendFileListThumbnails(){
+        server.getThumbnails().forEach(client.getUuid(), bytesEncryptor, this::sendThumbnail);
     }
 
     public void sendSessionEncKey(String salt, String encKey){
-        ByteArrayDataOutput output = ByteStreams.newDataOutput();
-        output.writeUTF("session-key");
+        ByteArrayDataOutput output = client.newPacket(Opcode.SESSION_KEY);
         output.writeUTF(salt);
         output.writeUTF(encKey);
         client.sendEncrypted(output.toByteArray());
     }
 
     public void sendPasswordData(MainDatabase.PasswordData data){
-        ByteArrayDataOutput output = ByteStreams.newDataOutput();
-        output.writeUTF("password-data");
+        ByteArrayDataOutput output = client.newPacket(Opcode.PASSWORD_DATA);
+        writePasswordRow(output, data);
+        client.sendEncrypted(output.toByteArray());
+    }
+
+    public void sendPasswordChange(MainDatabase.PasswordChange change){
+        ByteArrayDataOutput output = client.newPacket(Opcode.PASSWORD_CHANGED);
+        writePasswordChange(output, change);
+        client.sendEncrypted(output.toByteArray());
+    }
+
+    private static void writePasswordRow(ByteArrayDataOutput output, MainDatabase.PasswordData data){
         output.writeUTF(data.password);
         output.writeUTF(data.username);
         output.writeUTF(data.site);
         output.writeUTF(data.id.toString());
-        client.sendEncrypted(output.toByteArray());
     }
 
+    private static void writePasswordChange(ByteArrayDataOutput output, MainDatabase.PasswordChange change){
+        output.writeUTF(change.id.toString());
+        output.writeLong(change.version);
+        output.writeBoolean(change.deleted);
+        if(change.deleted) return;
+        output.writeUTF(change.password);
+        output.writeUTF(change.username);
+        output.writeUTF(change.site);
+    }
+
+    /**
+     * Blocking read loop, only used when the server runs the thread per connection transport.
+     */
     @Override
     public void run() {
-        //queryTask();
-        while (!client.isClosed()){
-            try {
+        int maxFrameSize = server.config.getInt("max-frame-size");
+        try {
+            DataInputStream dIn = new DataInputStream(new BufferedInputStream(client.getClientSocket().getInputStream()));
+            //reused for every frame of this connection, grown up to the maximum frame size
+            byte[] buffer = new byte[512];
+            while (!client.isClosed()){
                 int length = dIn.readInt();
-                byte[] message = new byte[length];
-                dIn.readFully(message);
-
-                ByteArrayDataInput in;
-
-                String subchannel;
-                if(!client.isConnectionSecured()){
-                    in = ByteStreams.newDataInput(message);
-                    subchannel = in.readUTF();
-                    if(subchannel.equals("sendkey")){
-                        sendKey();
-                        System.out.println("sent server side public key");
-                    }
-                    else if(subchannel.equals("receivekey")){
-                        String key = in.readUTF();
-                        client.getAesSecurityCap().setReceiverPublicKey(AESSecurityCap.keyFromString(key));
-                        System.out.println("received client side public key");
-                        client.setConnectionSecured(true);
-                        client.sendChannelMessage("Key exchange completed");
-                    }
-                    continue;
-                }
-                in = ByteStreams.newDataInput(client.getAesSecurityCap().decryptBytes(message));
-                subchannel = in.readUTF();
-
-                if(subchannel.equals("session-key")){
-                    String sessionID = in.readUTF();
-                    String username = in.readUTF();
-
-                    MainDatabase.UserData data = server.database.fetchUserData(username);
-                    if(data == null) continue;
-
-                    String key = server.database.getSessionEncKey(data.getUuid(), sessionID, Main.pwHasher);
-
-                    if(key != null){
-                        //used to decrypt the encrypted password on the clients side so it can authenticate
-                        sendSessionEncKey(data.getCryptographyData().salt, key);
-                    }
-                }
-
-                if(!client.isAuthenticated()){
-                    if(subchannel.equals("authentication")){
-                        String name = in.readUTF();
-                        String password = in.readUTF();
-                        MainDatabase.UserData data = server.database.fetchUserData(name);
-                        if(data == null){
-                            client.sendChannelMessage("Invalid credentials. (User not found)");
-                            sendAuthenticationStatus(AuthStatus.FAILED, password, "");
-                            continue;
-                        }
-                        if(Main.pwHasher.matches(password, data.getCryptographyData().hash)){
-                            authenticateUser(name, password, data);
-                            System.out.println("client authenticated as user " + name);
-                            sendAuthenticationStatus(AuthStatus.OK, password, data.getCryptographyData().salt);
-                            client.sendChannelMessage("Successfully authenticated");
-                        }
-                        else {
-                            client.sendChannelMessage("Invalid credentials. (Wrong password)");
-                            sendAuthenticationStatus(AuthStatus.FAILED, password, "");
-                        }
-                    }
-                    else if(subchannel.equals("registration")){
-                        String name = in.readUTF();
-                        String password = in.readUTF();
-                        String hash = Main.pwHasher.encode(password);
-
-                        MainDatabase.UserData data = server.database.fetchUserData(name);
-                        if(data != null){
-                            sendAuthenticationStatus(AuthStatus.ALREADY_REGISTERED, "", "");
-                            continue;
-                        }
-
-                        data = server.database.saveUser(name, hash);
-
-                        authenticateUser(name, password, data);
-                        sendAuthenticationStatus(AuthStatus.OK, password, data.getCryptographyData().salt);
-                        client.sendChannelMessage("Registered");
-                    }
-                }
-                else if(subchannel.equals("message")){
-                    String targetName = in.readUTF();
-                    String targetMsg = in.readUTF();
-                    Client target = server.getUser(targetName);
-                    if(target == null) continue;
-                    target.sendChannelMessage(targetMsg);
-                }
-                else if(subchannel.equals("create-session")){
-                    String sessionID = in.readUTF();
-
-                    sessionID = Main.pwHasher.encode(sessionID); //hashing it
-                    String newKey = server.database.saveSession(client.getUuid(), sessionID);
-                    sendSessionEncKey(client.getCryptographyData().salt, newKey);
-                }
-                else if(subchannel.equals("save-password")){
-                    String username = in.readUTF();
-                    String password = in.readUTF();
-                    String site = in.readUTF();
-                    MainDatabase.PasswordData passwordData = server.database.savePassword(client.getUuid(), password, username, site);
-                    sendPasswordData(passwordData);
-                }
-                else if(subchannel.equals("instruction")){
-                    String instruction = in.readUTF();
-                    if(instruction.equals("send-passwords")){
-                        List<MainDatabase.PasswordData> passwords = server.database.getAllUserPasswords(client.getUuid());
-                        System.out.println("found " + passwords.size() + " uuid " + client.getUuid());
-                        for(MainDatabase.PasswordData passwordData : passwords){
-                            sendPasswordData(passwordData);
-                        }
-                    }
-                }
-                else if(subchannel.equals("delete-password")){
-                    UUID uuid = UUID.fromString(in.readUTF());
-                    server.database.deletePassword(uuid);
-                }
-            } catch (IOException e) {
-                try {
-                    e.printStackTrace();
-                    client.getClientSocket().close();
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
-                }
+                if(length < 0 || length > maxFrameSize) throw new IOException("Invalid frame length " + length);
+                if(length > buffer.length) buffer = new byte[Math.min(maxFrameSize, Integer.highestOneBit(length - 1) << 1)];
+                dIn.readFully(buffer, 0, length);
+                handleMessage(buffer, 0, length);
+            }
+        }
+        //a malformed frame can also fail with an unchecked exception while it is parsed
+        catch (IOException | RuntimeException e){
+            e.printStackTrace();
+        }
+        finally {
+            disconnectUser("Disconnected");
+        }
+    }
+
+    public void handleMessage(byte[] message, int offset, int length) throws IOException {
+        client.markActivity();
+        if(!client.isConnectionSecured()){
+            handleKeyExchange(message, offset, length);
+            return;
+        }
+        ByteArrayDataInput in = ByteStreams.newDataInput(client.decrypt(message, offset, length));
+
+        Opcode opcode = client.isBinaryProtocol() ? Opcode.fromId(in.readUnsignedByte()) : Opcode.fromName(in.readUTF());
+        if(opcode == null || !opcode.isAllowed(client.isAuthenticated())) return;
+
+        PacketHandler handler = HANDLERS[opcode.getId()];
+        if(handler != null) handler.handle(this, in);
+    }
+
+    private void handleKeyExchange(byte[] message, int offset, int length){
+        ByteArrayInputStream bytes = new ByteArrayInputStream(message, offset, length);
+        ByteArrayDataInput in = ByteStreams.newDataInput(bytes);
+        String subchannel = in.readUTF();
+        if(subchannel.equals("sendkey")){
+            sendKey();
+            System.out.println("sent server side public key");
+        }
+        else if(subchannel.equals("receivekey")){
+            String key = in.readUTF();
+            client.getAesSecurityCap().setReceiverPublicKey(AESSecurityCap.keyFromString(key));
+            System.out.println("received client side public key");
+            //newer clients append the protocol version and features they support
+            if(bytes.available() >= 4){
+                int version = in.readInt();
+                int features = bytes.available() >= 4 ? in.readInt() : 0;
+                client.setProtocol(Protocol.negotiateVersion(version), Protocol.negotiateFeatures(features));
+                sendHello();
+            }
+            completeKeyExchange();
+        }
+        else if(subchannel.equals("resume")){
+            handleResume(in);
+        }
+    }
+
+    /**
+     * One round trip reconnect with a ticket from {@link #sendResumptionTicket()} instead of a new key exchange.
+     * If the ticket is not accepted the client gets "resume-failed" and can continue with "sendkey".
+     */
+    private void handleResume(ByteArrayDataInput in){
+        byte[] ticket = new byte[in.readUnsignedShort()];
+        in.readFully(ticket);
+        byte[] clientRandom = new byte[ResumptionTickets.RANDOM_LENGTH];
+        in.readFully(clientRandom);
+        int version = in.readInt();
+        int features = in.readInt();
+
+        ResumptionTickets tickets = server.getResumptionTickets();
+        byte[] resumptionSecret = tickets.redeem(ticket);
+        if(resumptionSecret == null){
+            ByteArrayDataOutput out = ByteStreams.newDataOutput();
+            out.writeUTF("resume-failed");
+            client.sendData(out.toByteArray());
+            return;
+        }
+        byte[] serverRandom = tickets.newRandom();
+        try {
+            client.setAesSecurityCap(new AESSecurityCap(ResumptionTickets.resumedSecret(resumptionSecret, clientRandom, serverRandom)));
+        }
+        catch (GeneralSecurityException e){
+            e.printStackTrace();
+            client.closeSocket();
+            return;
+        }
+        client.setProtocol(Protocol.negotiateVersion(version), Protocol.negotiateFeatures(features));
+
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeUTF("resumed");
+        out.write(serverRandom);
+        out.writeInt(client.getProtocolVersion());
+        out.writeInt(client.getFeatures());
+        client.sendData(out.toByteArray());
+        completeKeyExchange();
+    }
+
+    private void completeKeyExchange(){
+        if(client.hasFeature(Protocol.FEATURE_AES_GCM)){
+            try {
+                client.setSessionCipher(SessionCipher.forServer(client.getAesSecurityCap().getSharedSecret()));
+            }
+            catch (GeneralSecurityException e){
+                e.printStackTrace();
+                client.closeSocket();
+                return;
+            }
+        }
+        if(client.hasFeature(Protocol.FEATURE_LZF)) client.setCompression(server.getCompression());
+        client.setConnectionSecured(true);
+        client.sendChannelMessage("Key exchange completed");
+        if(client.hasFeature(Protocol.FEATURE_RESUMPTION)) sendResumptionTicket();
+    }
+
+    private void sendResumptionTicket(){
+        ResumptionTickets tickets = server.getResumptionTickets();
+        try {
+            byte[] ticket = tickets.issue(client.getAesSecurityCap().getSharedSecret());
+            ByteArrayDataOutput output = client.newPacket(Opcode.RESUMPTION_TICKET);
+            output.writeLong(tickets.getLifetimeSeconds());
+            output.writeShort(ticket.length);
+            output.write(ticket);
+            client.sendEncrypted(output.toByteArray());
+        }
+        catch (GeneralSecurityException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void sendHello(){
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeUTF("hello");
+        out.writeInt(client.getProtocolVersion());
+        out.writeInt(client.getFeatures());
+        client.sendData(out.toByteArray());
+    }
+
+    private void handleSessionKey(ByteArrayDataInput in){
+        String sessionID = in.readUTF();
+        String username = in.readUTF();
+
+        MainDatabase.UserData data = server.database.fetchUserData(username);
+        if(data == null) return;
+
+        String key;
+        try {
+            key = server.database.getSessionEncKey(data.getUuid(), sessionID, server.getPasswordHasher(), server.config.getLong("session-lifetime"));
+        }
+        catch (PasswordHasher.BusyException e){
+            client.sendChannelMessage("Server is busy, try again later");
+            return;
+        }
+
+        if(key != null){
+            //used to decrypt the encrypted password on the clients side so it can authenticate
+            sendSessionEncKey(data.getCryptographyData().salt, key);
+        }
+    }
+
+    private void handleAuthentication(ByteArrayDataInput in){
+        String name = in.readUTF();
+        String password = in.readUTF();
+        if(!server.getLoginLimiter().tryAttempt(name, client.getAddress().getHostAddress())){
+            client.sendChannelMessage("Too many login attempts, try again later");
+            sendAuthenticationStatus(AuthStatus.FAILED, "", "");
+            return;
+        }
+        MainDatabase.UserData data = server.database.fetchUserData(name);
+        if(data == null){
+            client.sendChannelMessage("Invalid credentials. (User not found)");
+            sendAuthenticationStatus(AuthStatus.FAILED, password, "");
+            return;
+        }
+        boolean matches;
+        try {
+            matches = server.getPasswordHasher().matches(password, data.getCryptographyData().hash);
+        }
+        catch (PasswordHasher.BusyException e){
+            sendAuthenticationStatus(AuthStatus.BUSY, "", "");
+            return;
+        }
+        if(matches){
+            server.getPasswordHasher().rehash(password, data.getCryptographyData().hash, hash -> server.database.updateUserHash(data.getUuid(), hash));
+            server.getLoginLimiter().succeeded(name);
+            authenticateUser(name, password, data);
+            System.out.println("client authenticated as user " + name);
+            sendAuthenticationStatus(AuthStatus.OK, password, data.getCryptographyData().salt);
+            client.sendChannelMessage("Successfully authenticated");
+        }
+        else {
+            client.sendChannelMessage("Invalid credentials. (Wrong password)");
+            sendAuthenticationStatus(AuthStatus.FAILED, password, "");
+        }
+    }
+
+    private void handleRegistration(ByteArrayDataInput in){
+        String name = in.readUTF();
+        String password = in.readUTF();
+
+        MainDatabase.UserData data = server.database.fetchUserData(name);
+        if(data != null){
+            sendAuthenticationStatus(AuthStatus.ALREADY_REGISTERED, "", "");
+            return;
+        }
+        String hash;
+        try {
+            hash = server.getPasswordHasher().encode(password);
+        }
+        catch (PasswordHasher.BusyException e){
+            sendAuthenticationStatus(AuthStatus.BUSY, "", "");
+            return;
+        }
+
+        data = server.database.saveUser(name, hash);
+
+        authenticateUser(name, password, data);
+        sendAuthenticationStatus(AuthStatus.OK, password, data.getCryptographyData().salt);
+        client.sendChannelMessage("Registered");
+    }
+
+    private void handleMessageRoute(ByteArrayDataInput in){
+        String targetName = in.readUTF();
+        String targetMsg = in.readUTF();
+        for(Client target : server.getUser(targetName)){
+            target.sendChannelMessage(targetMsg);
+        }
+    }
+
+    private void handleCreateSession(ByteArrayDataInput in){
+        String sessionID = in.readUTF();
+
+        String hash;
+        try {
+            hash = server.getPasswordHasher().encode(sessionID); //hashing it
+        }
+        catch (PasswordHasher.BusyException e){
+            client.sendChannelMessage("Server is busy, try again later");
+            return;
+        }
+        String newKey = server.database.saveSession(client.getUuid(), sessionID, hash, server.config.getLong("session-lifetime"));
+        sendSessionEncKey(client.getCryptographyData().salt, newKey);
+    }
+
+    private void handleSavePassword(ByteArrayDataInput in){
+        String username = in.readUTF();
+        String password = in.readUTF();
+        String site = in.readUTF();
+        MainDatabase.PasswordData passwordData = server.database.savePassword(client.getUuid(), password, username, site);
+        if(passwordData == null){
+            client.sendChannelMessage("Could not save the password, try again later");
+            return;
+        }
+        sendPasswordData(passwordData);
+    }
+
+    private void handleInstruction(ByteArrayDataInput in){
+        String instruction = in.readUTF();
+        if(instruction.equals("send-passwords")){
+            int count;
+            if(client.getProtocolVersion() >= Protocol.BATCH_VERSION){
+                FrameBatcher<MainDatabase.PasswordData> batcher = new FrameBatcher<>(client, Opcode.PASSWORD_BATCH,
+                        server.config.getInt("password-batch-bytes"), ClientListener::writePasswordRow);
+                server.database.forEachUserPassword(client.getUuid(), batcher);
+                count = batcher.finish();
+                ByteArrayDataOutput output = client.newPacket(Opcode.PASSWORD_BATCH_END);
+                output.writeInt(count);
+                client.sendEncrypted(output.toByteArray());
             }
+            else count = server.database.forEachUserPassword(client.getUuid(), this::sendPasswordData);
+            System.out.println("found " + count + " uuid " + client.getUuid());
+        }
+        else if(instruction.equals("send-thumbnails")){
+            sendFileListThumbnails();
+        }
+    }
+
+    /**
+     * Sends the changes made after the client's version, the list ends with the version the client is at afterwards.
+     */
+    private void handleSyncPasswords(ByteArrayDataInput in){
+        long since = in.readLong();
+        FrameBatcher<MainDatabase.PasswordChange> batcher = new FrameBatcher<>(client, Opcode.PASSWORD_CHANGES,
+                server.config.getInt("password-batch-bytes"), ClientListener::writePasswordChange);
+        long version = server.database.forEachPasswordChange(client.getUuid(), since, batcher);
+        int count = batcher.finish();
+        ByteArrayDataOutput output = client.newPacket(Opcode.PASSWORD_CHANGES_END);
+        output.writeLong(version);
+        output.writeInt(count);
+        client.sendEncrypted(output.toByteArray());
+    }
+
+    private void handleFileRequest(ByteArrayDataInput in) throws IOException {
+        String name = in.readUTF();
+        long offset = in.readLong();
+        File folder = new File("user_files/" + client.getUuid());
+        File file = new File(folder, name);
+        //the name comes from the client, it must not point outside the user's own folder, and every transfer
+        //holds an open file until it is acknowledged to the end
+        if(!file.isFile() || !folder.getCanonicalFile().equals(file.getCanonicalFile().getParentFile())
+                || transfers.size() >= server.config.getInt("max-file-transfers")){
+            ByteArrayDataOutput output = client.newPacket(Opcode.FILE_TRANSFER_START);
+            output.writeInt(-1);
+            output.writeUTF(name);
+            client.sendEncrypted(output.toByteArray());
+            return;
+        }
+        FileTransfer transfer = new FileTransfer(nextTransferId.getAndIncrement(), name, file, bytesEncryptor, offset,
+                server.config.getInt("file-chunk-size"));
+        transfers.put(transfer.getId(), transfer);
+
+        ByteArrayDataOutput output = client.newPacket(Opcode.FILE_TRANSFER_START);
+        output.writeInt(transfer.getId());
+        output.writeUTF(name);
+        output.writeLong(transfer.getSize());
+        output.writeLong(transfer.getNextOffset());
+        output.writeInt(transfer.getChunkSize());
+        client.sendEncrypted(output.toByteArray());
+        sendFileChunks(transfer);
+    }
+
+    private void handleFileAck(ByteArrayDataInput in) throws IOException {
+        FileTransfer transfer = transfers.get(in.readInt());
+        if(transfer == null) return;
+        transfer.acknowledge(in.readLong());
+        sendFileChunks(transfer);
+    }
+
+    /**
+     * Sends chunks until the window of unacknowledged chunks is full, or ends the transfer once everything is acknowledged.
+     */
+    private void sendFileChunks(FileTransfer transfer) throws IOException {
+        int window = server.config.getInt("file-transfer-window");
+        while (transfer.hasMore() && transfer.getInFlight() < window && !client.isClosed()){
+            long offset = transfer.getNextOffset();
+            byte[] chunk = transfer.nextChunk();
+            ByteArrayDataOutput output = client.newPacket(Opcode.FILE_CHUNK);
+            output.writeInt(transfer.getId());
+            output.writeLong(offset);
+            output.writeInt(chunk.length);
+            output.write(chunk);
+            client.sendEncrypted(output.toByteArray(), OutboundQueue.Lane.BULK);
+        }
+        if(transfer.isComplete()){
+            transfers.remove(transfer.getId());
+            transfer.close();
+            ByteArrayDataOutput output = client.newPacket(Opcode.FILE_TRANSFER_END);
+            output.writeInt(transfer.getId());
+            client.sendEncrypted(output.toByteArray());
         }
-        disconnectUser("Disconnected");
+    }
+
+    private void handleHeartbeat(ByteArrayDataInput in){
+        ByteArrayDataOutput output = client.newPacket(Opcode.HEARTBEAT_ACK);
+        output.writeLong(in.readLong());
+        client.sendEncrypted(output.toByteArray());
+    }
+
+    private void handleHeartbeatAck(ByteArrayDataInput in){
+        server.getHeartbeats().acknowledged(client, in.readLong());
+    }
+
+    private void handleDeletePassword(ByteArrayDataInput in){
+        UUID uuid = UUID.fromString(in.readUTF());
+        server.database.deletePassword(client.getUuid(), uuid);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package fi.samppa.server.clienthandling;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Transport a {@link Client} writes its length-prefixed frames to. Writes are queued and
+ * sent by the connection's own writer, so callers never block on a slow socket.
+ */
+public interface Connection {
+
+    /**
+     * Must be called before {@link #writeFrame(byte[], OutboundQueue.Lane)}, the slow consumer policy is applied here.
+     * @param droppable see {@link OutboundQueue#admit(int, OutboundQueue.Lane, boolean, Connection)}
+     * @return false if a frame of this size must not be queued on the lane
+     */
+    boolean admit(int size, OutboundQueue.Lane lane, boolean droppable);
+
+    /**
+     * Queues the frame on the {@link OutboundQueue.Lane#CONTROL} lane.
+     */
+    default void writeFrame(byte[] data) throws IOException {
+        writeFrame(data, OutboundQueue.Lane.CONTROL);
+    }
+
+    void writeFrame(byte[] data, OutboundQueue.Lane lane) throws IOException;
+
+    void close();
+
+    boolean isClosed();
+
+    Socket getSocket();
+
+    OutboundQueue getOutboundQueue();
+}
@@ -0,0 +1,131 @@
+package fi.samppa.server.clienthandling;
+
+import org.springframework.security.crypto.encrypt.BytesEncryptor;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * State of one chunked download, see {@link fi.samppa.server.clienthandling.protocol.Opcode#FILE_REQUEST}.
+ * <p>
+ * Stored files are a sequence of {@link #BLOCK_SIZE} byte blocks that were each encrypted on their own
+ * (16 byte IV, then the padded ciphertext), so a chunk is read and decrypted block by block starting from
+ * any block boundary. Only the chunk being read is held here, the file itself is never loaded.
+ */
+class FileTransfer implements Closeable {
+    //plaintext bytes per stored block, the same as RestAPIController uses when it stores files
+    static final int BLOCK_SIZE = 1024;
+    //IV and AES/CBC padded ciphertext of one block
+    static final int STORED_BLOCK_SIZE = BLOCK_SIZE + 32;
+
+    private final int id;
+    private final String name;
+    private final FileChannel channel;
+    private final BytesEncryptor encryptor;
+    private final int chunkSize;
+    private final long size;
+
+    //reused for the ciphertext of every chunk
+    private final ByteBuffer stored;
+
+    private long nextOffset;
+    private long ackedOffset;
+
+    /**
+     * @param offset where to resume, rounded down to a block boundary
+     * @param chunkSize plaintext bytes per chunk, rounded down to whole blocks
+     */
+    FileTransfer(int id, String name, File file, BytesEncryptor encryptor, long offset, int chunkSize) throws IOException {
+        this.id = id;
+        this.name = name;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.encryptor = encryptor;
+        this.chunkSize = Math.max(1, chunkSize / BLOCK_SIZE) * BLOCK_SIZE;
+        this.size = channel.size() / STORED_BLOCK_SIZE * BLOCK_SIZE;
+        this.stored = ByteBuffer.allocate(this.chunkSize / BLOCK_SIZE * STORED_BLOCK_SIZE);
+        this.nextOffset = Math.min(size, Math.max(0, offset) / BLOCK_SIZE * BLOCK_SIZE);
+        this.ackedOffset = nextOffset;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return where the transfer starts or continues from
+     */
+    long getNextOffset() {
+        return nextOffset;
+    }
+
+    boolean hasMore(){
+        return nextOffset < size;
+    }
+
+    boolean isComplete(){
+        return ackedOffset >= size;
+    }
+
+    /**
+     * @return chunks sent but not acknowledged yet
+     */
+    int getInFlight(){
+        return (int) ((nextOffset - ackedOffset + chunkSize - 1) / chunkSize);
+    }
+
+    void acknowledge(long offset){
+        if(offset > ackedOffset) ackedOffset = Math.min(offset, nextOffset);
+    }
+
+    /**
+     * Reads and decrypts the chunk at {@link #getNextOffset()} and moves past it.
+     */
+    byte[] nextChunk() throws IOException {
+        int length = (int) Math.min(chunkSize, size - nextOffset);
+        int blocks = length / BLOCK_SIZE;
+        stored.clear();
+        stored.limit(blocks * STORED_BLOCK_SIZE);
+        long position = nextOffset / BLOCK_SIZE * STORED_BLOCK_SIZE;
+        while (stored.hasRemaining()){
+            if(channel.read(stored, position + stored.position()) < 0) throw new EOFException("File " + name + " ended early");
+        }
+
+        byte[] chunk = new byte[length];
+        byte[] block = new byte[STORED_BLOCK_SIZE];
+        stored.flip();
+        for(int i = 0; i < blocks; i++){
+            stored.get(block);
+            byte[] plain = encryptor.decrypt(block);
+            System.arraycopy(plain, 0, chunk, i * BLOCK_SIZE, Math.min(BLOCK_SIZE, plain.length));
+        }
+        nextOffset += length;
+        return chunk;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package fi.samppa.server.clienthandling;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import fi.samppa.server.clienthandling.protocol.Opcode;
+
+import java.io.ByteArrayOutputStream;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Packs rows into frames of the given opcode of about maxBytes each, so a list is sent as it is
+ * read from the database instead of one frame per row. Every frame is the row count followed by the rows.
+ */
+class FrameBatcher<T> implements Consumer<T> {
+    private final Client client;
+    private final Opcode opcode;
+    private final int maxBytes;
+    private final BiConsumer<ByteArrayDataOutput, T> rowWriter;
+
+    //reused for every batch
+    private final ByteArrayOutputStream bytes;
+    private final ByteArrayDataOutput rows;
+    private int batchCount = 0;
+    private int total = 0;
+
+    FrameBatcher(Client client, Opcode opcode, int maxBytes, BiConsumer<ByteArrayDataOutput, T> rowWriter) {
+        this.client = client;
+        this.opcode = opcode;
+        this.maxBytes = maxBytes;
+        this.rowWriter = rowWriter;
+        this.bytes = new ByteArrayOutputStream(maxBytes + 1024);
+        this.rows = ByteStreams.newDataOutput(bytes);
+    }
+
+    @Override
+    public void accept(T row) {
+        rowWriter.accept(rows, row);
+        batchCount++;
+        total++;
+        if(bytes.size() >= maxBytes) flush();
+    }
+
+    /**
+     * Sends the last rows, the caller ends the list with a frame of its own.
+     * @return the number of rows sent
+     */
+    int finish(){
+        if(batchCount > 0) flush();
+        return total;
+    }
+
+    private void flush(){
+        //the rows are still read so the cursor is drained, but there is nothing to encrypt them for
+        if(!client.isClosed()){
+            ByteArrayDataOutput output = client.newPacket(opcode);
+            output.writeInt(batchCount);
+            output.write(bytes.toByteArray());
+            client.sendEncrypted(output.toByteArray());
+        }
+        bytes.reset();
+        batchCount = 0;
+    }
+}
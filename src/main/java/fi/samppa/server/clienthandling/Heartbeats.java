@@ -0,0 +1,113 @@
+package fi.samppa.server.clienthandling;
+
+import com.google.common.io.ByteArrayDataOutput;
+import fi.samppa.server.clienthandling.protocol.Opcode;
+import fi.samppa.server.clienthandling.protocol.Protocol;
+import fi.samppa.server.metrics.LatencyHistogram;
+import fi.samppa.server.metrics.Metrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Heartbeats and idle connection eviction for every connection, driven by one {@link TimerWheel}.
+ * <p>
+ * Each connection is checked once per interval. Clients that negotiated {@link Protocol#FEATURE_HEARTBEAT} get a
+ * {@link Opcode#HEARTBEAT} carrying the server's clock, the echo in {@link Opcode#HEARTBEAT_ACK} gives the round
+ * trip time. They are evicted once nothing at all has been received from them for the given number of intervals,
+ * which also catches half-open connections. Connections that have not authenticated by the deadline are evicted
+ * whatever they negotiated.
+ */
+public class Heartbeats {
+    private final TimerWheel wheel = new TimerWheel("heartbeats", 100, TimeUnit.MILLISECONDS, 512);
+    private final long intervalNanos;
+    private final int missedLimit;
+    private final long authDeadlineNanos;
+
+    private final Set<Client> tracked = ConcurrentHashMap.newKeySet();
+
+    private final LatencyHistogram rtt = LatencyHistogram.register("connections.rtt", 60);
+    private final LongAdder heartbeatEvictions = Metrics.counter("connections.heartbeat-evictions");
+    private final LongAdder authEvictions = Metrics.counter("connections.auth-deadline-evictions");
+
+    /**
+     * @param interval seconds between heartbeats
+     * @param missedLimit intervals a client may stay silent before it is evicted
+     * @param authDeadline seconds a connection may stay unauthenticated
+     */
+    public Heartbeats(int interval, int missedLimit, int authDeadline) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(interval);
+        this.missedLimit = missedLimit;
+        this.authDeadlineNanos = TimeUnit.SECONDS.toNanos(authDeadline);
+        Metrics.gauge("connections.live", tracked::size);
+        Metrics.gauge("connections.idle", this::countIdle);
+    }
+
+    public void track(Client client){
+        tracked.add(client);
+        schedule(client);
+    }
+
+    public void untrack(Client client){
+        //its pending timeout stays in the wheel until it fires and finds the client gone
+        tracked.remove(client);
+    }
+
+    private void schedule(Client client){
+        wheel.schedule(() -> check(client), intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void check(Client client){
+        if(!tracked.contains(client)) return;
+        if(client.isClosed()){
+            tracked.remove(client);
+            return;
+        }
+        long now = System.nanoTime();
+        if(!client.isAuthenticated() && now - client.getConnectedAt() > authDeadlineNanos){
+            authEvictions.increment();
+            evict(client, "Not authenticated in time");
+            return;
+        }
+        if(client.isConnectionSecured() && client.hasFeature(Protocol.FEATURE_HEARTBEAT)){
+            if(now - client.getLastActivity() > missedLimit * intervalNanos){
+                heartbeatEvictions.increment();
+                evict(client, "Missed heartbeats");
+                return;
+            }
+            ByteArrayDataOutput output = client.newPacket(Opcode.HEARTBEAT);
+            output.writeLong(now);
+            //a lost heartbeat only counts as one missed
+            client.sendEncrypted(output.toByteArray(), OutboundQueue.Lane.CONTROL, true);
+        }
+        schedule(client);
+    }
+
+    private void evict(Client client, String reason){
+        tracked.remove(client);
+        if(client.getHandler() != null) client.getHandler().disconnectUser(reason);
+        else client.closeSocket();
+    }
+
+    /**
+     * Records the round trip of a heartbeat the client echoed back.
+     * @param sent the clock value of the heartbeat
+     */
+    public void acknowledged(Client client, long sent){
+        long elapsed = System.nanoTime() - sent;
+        //the value comes from the client, ignore anything that can not be one of our heartbeats
+        if(elapsed < 0 || elapsed > missedLimit * intervalNanos) return;
+        client.setPing((int) TimeUnit.NANOSECONDS.toMillis(elapsed));
+        rtt.record(elapsed);
+    }
+
+    /**
+     * @return connections nothing has been received from for longer than one interval
+     */
+    private long countIdle(){
+        long now = System.nanoTime();
+        return tracked.stream().filter(client -> now - client.getLastActivity() > intervalNanos).count();
+    }
+}
@@ -0,0 +1,109 @@
+package fi.samppa.server.clienthandling;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import fi.samppa.server.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits password attempts per username and per source address, for both the REST API and the socket.
+ * <p>
+ * Each key counts its attempts in a sliding window, estimated from the counts of the current and the previous fixed
+ * window so a key only needs two numbers. Keys live in a cache with a hard size cap and are forgotten once both of
+ * their windows have passed, when their count would be zero anyway. Attempts that are refused are not counted, so
+ * the account is free again one window after the guessing stops.
+ */
+public class LoginLimiter {
+    private final int perUser;
+    private final int perAddress;
+    private final long windowNanos;
+
+    private final Cache<String, SlidingWindow> users;
+    private final Cache<String, SlidingWindow> addresses;
+
+    private final LongAdder rejectedUser = Metrics.counter("logins.rejected-per-user");
+    private final LongAdder rejectedAddress = Metrics.counter("logins.rejected-per-ip");
+
+    /**
+     * @param perUser attempts a username may get in a window
+     * @param perAddress attempts an address may make in a window, over all usernames
+     * @param trackedKeys most usernames, and separately addresses, that are tracked
+     */
+    public LoginLimiter(int perUser, int perAddress, long windowSeconds, int trackedKeys) {
+        this.perUser = perUser;
+        this.perAddress = perAddress;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.users = newCache(windowSeconds, trackedKeys);
+        this.addresses = newCache(windowSeconds, trackedKeys);
+        Metrics.gauge("logins.tracked-users", users::size);
+        Metrics.gauge("logins.tracked-ips", addresses::size);
+    }
+
+    private static Cache<String, SlidingWindow> newCache(long windowSeconds, int trackedKeys){
+        return CacheBuilder.newBuilder()
+                .maximumSize(trackedKeys)
+                .expireAfterAccess(windowSeconds * 2, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Counts an attempt unless either the username or the address is over its limit.
+     * @return false if the attempt must be refused without checking the password
+     */
+    public boolean tryAttempt(String username, String address){
+        SlidingWindow user = users.asMap().computeIfAbsent(username, k -> new SlidingWindow());
+        SlidingWindow source = addresses.asMap().computeIfAbsent(address, k -> new SlidingWindow());
+        //always locked in this order, so concurrent attempts can not both pass the last free slot
+        synchronized (user){
+            synchronized (source){
+                long now = System.nanoTime();
+                if(source.count(now) >= perAddress){
+                    rejectedAddress.increment();
+                    return false;
+                }
+                if(user.count(now) >= perUser){
+                    rejectedUser.increment();
+                    return false;
+                }
+                user.add(now);
+                source.add(now);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Clears the username's attempts after a correct password. The address keeps its count, logging in to an
+     * account of one's own must not allow more guesses at others.
+     */
+    public void succeeded(String username){
+        users.invalidate(username);
+    }
+
+    private class SlidingWindow {
+        private long start = System.nanoTime();
+        private int previous;
+        private int current;
+
+        synchronized double count(long now){
+            roll(now);
+            double previousWeight = 1 - (double) (now - start) / windowNanos;
+            return previous * previousWeight + current;
+        }
+
+        synchronized void add(long now){
+            roll(now);
+            current++;
+        }
+
+        private void roll(long now){
+            long windows = (now - start) / windowNanos;
+            if(windows == 0) return;
+            previous = windows == 1 ? current : 0;
+            current = 0;
+            start += windows * windowNanos;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package fi.samppa.server.clienthandling;
+
+import fi.samppa.server.metrics.LatencyHistogram;
+import fi.samppa.server.metrics.Metrics;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection. Any thread may add frames,
+ * only the connection's writer removes them.
+ * <p>
+ * Frames are queued on one of two {@link Lane}s. Control frames always go out before bulk ones, but bulk frames
+ * are released to the writer one at a time, so a control frame waits for at most one bulk frame however much
+ * bulk data is queued. Within a lane frames keep their order. The time every frame spent queued is recorded
+ * per lane and exposed as the outbound.control-latency and outbound.bulk-latency percentiles.
+ * <p>
+ * Each lane has the configured frame and byte limits to itself, so a file transfer that fills the bulk lane never
+ * causes a control frame to be refused.
+ */
+public class OutboundQueue implements Iterable<byte[]> {
+    private static final LongAdder totalFrames = new LongAdder();
+    private static final LongAdder totalBytes = new LongAdder();
+    private static final LongAdder dropped = Metrics.counter("outbound.dropped-frames");
+    private static final LongAdder disconnects = Metrics.counter("outbound.slow-consumer-disconnects");
+
+    private static final LatencyHistogram controlLatency = LatencyHistogram.register("outbound.control-latency", 60);
+    private static final LatencyHistogram bulkLatency = LatencyHistogram.register("outbound.bulk-latency", 60);
+
+    static {
+        Metrics.gauge("outbound.queued-frames", totalFrames::sum);
+        Metrics.gauge("outbound.queued-bytes", totalBytes::sum);
+    }
+
+    private final Limits limits;
+    private final Queue<Entry> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> bulk = new ConcurrentLinkedQueue<>();
+    //frames released to the writer in the order they are written, only touched by the writer
+    private final Queue<Entry> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    //the same per lane, indexed by ordinal, checked against the limits
+    private final AtomicInteger[] laneFrames = {new AtomicInteger(), new AtomicInteger()};
+    private final AtomicLong[] laneBytes = {new AtomicLong(), new AtomicLong()};
+
+    public OutboundQueue(Limits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Checks whether a frame of the given size fits in its lane, applying the slow consumer policy if it does not.
+     * A frame always fits in an empty lane, however large it is.
+     * @param droppable whether the client copes with never getting the frame, only such frames are dropped by
+     *                  {@link SlowConsumerPolicy#DROP}, for any other the connection is closed
+     * @return false if the frame must not be queued
+     */
+    public boolean admit(int size, Lane lane, boolean droppable, Connection connection){
+        int count = laneFrames[lane.ordinal()].get();
+        long bytes = laneBytes[lane.ordinal()].get();
+        if(count == 0 || (count < limits.maxFrames && bytes + size <= limits.maxBytes)) return true;
+        dropped.increment();
+        if(limits.policy == SlowConsumerPolicy.DISCONNECT || !droppable){
+            disconnects.increment();
+            System.out.println(String.format("Disconnecting slow consumer %s (%s %s frames, %s bytes queued)",
+                    connection.getSocket().getInetAddress(), count, lane.name().toLowerCase(), bytes));
+            connection.close();
+        }
+        return false;
+    }
+
+    public void add(byte[] frame){
+        add(frame, Lane.CONTROL);
+    }
+
+    public void add(byte[] frame, Lane lane){
+        (lane == Lane.BULK ? bulk : control).add(new Entry(frame, lane));
+        queuedFrames.incrementAndGet();
+        queuedBytes.addAndGet(frame.length);
+        laneFrames[lane.ordinal()].incrementAndGet();
+        laneBytes[lane.ordinal()].addAndGet(frame.length);
+        totalFrames.increment();
+        totalBytes.add(frame.length);
+    }
+
+    /**
+     * @return the next frame to write, it stays the next one until it is removed
+     */
+    public byte[] peek(){
+        if(ready.isEmpty()) release();
+        Entry entry = ready.peek();
+        return entry == null ? null : entry.frame;
+    }
+
+    public void remove(){
+        Entry entry = ready.poll();
+        if(entry == null) return;
+        queuedFrames.decrementAndGet();
+        queuedBytes.addAndGet(-entry.frame.length);
+        laneFrames[entry.lane.ordinal()].decrementAndGet();
+        laneBytes[entry.lane.ordinal()].addAndGet(-entry.frame.length);
+        totalFrames.decrement();
+        totalBytes.add(-entry.frame.length);
+        (entry.lane == Lane.BULK ? bulkLatency : controlLatency).record(System.nanoTime() - entry.queuedAt);
+    }
+
+    /**
+     * Moves every queued control frame to the writer, or a single bulk frame if there are none.
+     */
+    private void release(){
+        Entry entry;
+        while ((entry = control.poll()) != null) ready.add(entry);
+        if(ready.isEmpty() && (entry = bulk.poll()) != null) ready.add(entry);
+    }
+
+    public void clear(){
+        while (!isEmpty()){
+            if(ready.isEmpty()) release();
+            remove();
+        }
+    }
+
+    public boolean isEmpty(){
+        return ready.isEmpty() && control.isEmpty() && bulk.isEmpty();
+    }
+
+    public int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Iterates the frames released to the writer, starting from {@link #peek()}. Frames still waiting in their
+     * lane are not included, so a gathering write never lets a bulk frame overtake a later control frame.
+     */
+    @Override
+    public Iterator<byte[]> iterator() {
+        if(ready.isEmpty()) release();
+        Iterator<Entry> entries = ready.iterator();
+        return new Iterator<byte[]>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                return entries.next().frame;
+            }
+        };
+    }
+
+    public enum Lane {
+        //small interactive frames, written before any queued bulk frame
+        CONTROL,
+        //file data, written one frame at a time between control frames
+        BULK
+    }
+
+    private static class Entry {
+        private final byte[] frame;
+        private final Lane lane;
+        private final long queuedAt = System.nanoTime();
+
+        Entry(byte[] frame, Lane lane) {
+            this.frame = frame;
+            this.lane = lane;
+        }
+    }
+
+    public enum SlowConsumerPolicy {
+        //channel messages and heartbeats that do not fit are dropped, the connection is closed for any other frame
+        //since a lost file chunk or password change would leave the client waiting or with a partial vault
+        DROP,
+        //the connection is closed as soon as a frame does not fit
+        DISCONNECT
+    }
+
+    public static class Limits {
+        private final int maxFrames;
+        private final long maxBytes;
+        private final SlowConsumerPolicy policy;
+
+        public Limits(int maxFrames, long maxBytes, SlowConsumerPolicy policy) {
+            this.maxFrames = maxFrames;
+            this.maxBytes = maxBytes;
+            this.policy = policy;
+        }
+    }
+}
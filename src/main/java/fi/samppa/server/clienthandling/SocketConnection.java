@@ -0,0 +1,98 @@
+package fi.samppa.server.clienthandling;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blocking connection, read by a dedicated {@link ClientListener} thread. Queued frames are
+ * written by a task on the shared writer executor, at most one per connection at a time.
+ */
+public class SocketConnection implements Connection {
+    private final SocketChannel channel;
+    private final Executor writers;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+
+    //only used by the writer task
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+
+    public SocketConnection(SocketChannel channel, Executor writers, OutboundQueue.Limits limits) {
+        this.channel = channel;
+        this.writers = writers;
+        this.outbound = new OutboundQueue(limits);
+    }
+
+    @Override
+    public boolean admit(int size, OutboundQueue.Lane lane, boolean droppable) {
+        return outbound.admit(size, lane, droppable, this);
+    }
+
+    @Override
+    public void writeFrame(byte[] data, OutboundQueue.Lane lane) throws IOException {
+        if(isClosed()) throw new IOException("Connection closed");
+        outbound.add(data, lane);
+        if(writing.compareAndSet(false, true)) writers.execute(this::drain);
+    }
+
+    private void drain(){
+        try {
+            byte[] data;
+            while ((data = outbound.peek()) != null){
+                write(data);
+                outbound.remove();
+            }
+        }
+        catch (IOException e){
+            close();
+        }
+        finally {
+            writing.set(false);
+        }
+        //a frame may have been queued after the last peek but before the flag was cleared
+        if(!outbound.isEmpty() && !isClosed() && writing.compareAndSet(false, true)) writers.execute(this::drain);
+    }
+
+    private void write(byte[] data) throws IOException {
+        header.clear();
+        header.putInt(data.length).flip(); //writing length
+        ByteBuffer payload = ByteBuffer.wrap(data);
+        frame[0] = header;
+        frame[1] = payload;
+        //header and payload go out in the same gathering write
+        while (header.hasRemaining() || payload.hasRemaining()){
+            channel.write(frame);
+        }
+        frame[1] = null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        outbound.clear();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
@@ -0,0 +1,81 @@
+package fi.samppa.server.clienthandling;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel, one thread serves the timeouts of every connection. Scheduling is a single queue insert,
+ * and a tick only looks at the timeouts in its own slot, so the cost does not grow with the number of
+ * connections the way a timer per connection would. Timeouts fire up to one tick late.
+ * <p>
+ * Tasks run on the wheel thread and must not block.
+ */
+public class TimerWheel {
+    private final long tickNanos;
+    //only touched by the wheel thread
+    private final List<Timeout>[] slots;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private final long start = System.nanoTime();
+    private long tick = 0;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long tickDuration, TimeUnit unit, int slotCount) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.slots = new List[slotCount];
+        for(int i = 0; i < slotCount; i++) slots[i] = new ArrayList<>();
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void schedule(Runnable task, long delay, TimeUnit unit){
+        pending.add(new Timeout(task, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    private void run(){
+        while (true){
+            long wakeUp = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < wakeUp) LockSupport.parkNanos(wakeUp - now);
+
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null){
+                //a deadline that has already passed goes to the current slot
+                long ticks = Math.max(tick, (timeout.deadline - start) / tickNanos);
+                timeout.rounds = (ticks - tick) / slots.length;
+                slots[(int) (ticks % slots.length)].add(timeout);
+            }
+
+            Iterator<Timeout> iterator = slots[(int) (tick % slots.length)].iterator();
+            while (iterator.hasNext()){
+                timeout = iterator.next();
+                if(timeout.rounds-- > 0) continue;
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                }
+                catch (Exception e){
+                    e.printStackTrace();
+                }
+            }
+            tick++;
+        }
+    }
+
+    private static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package fi.samppa.server.clienthandling.nio;
+
+import fi.samppa.server.clienthandling.BufferPool;
+import fi.samppa.server.clienthandling.ClientListener;
+import fi.samppa.server.clienthandling.Connection;
+import fi.samppa.server.clienthandling.OutboundQueue;
+import fi.samppa.server.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking connection driven by a {@link SelectorLoop}. Frames are decoded on the loop thread
+ * and handed to the worker pool one at a time, so a connection's frames are still handled in order.
+ * <p>
+ * When more frames or bytes are waiting for the workers than the inbound limits allow, the connection stops
+ * reading until the workers have caught up, leaving the rest in the socket buffers so the client has to wait.
+ */
+public class NioConnection implements Connection {
+    private static final LongAdder readPauses = Metrics.counter("nio.read-pauses");
+
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private final Executor workers;
+    private final BufferPool bufferPool;
+    private final int maxFrameSize;
+    private final int maxInboundFrames;
+    private final long maxInboundBytes;
+
+    private SelectionKey key;
+    private ClientListener listener;
+
+    //decoder state, only touched by the loop thread
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private byte[] frame;
+    private int frameLength, frameFilled;
+
+    //complete frames, backed by pooled arrays
+    private final Queue<ByteBuffer> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicInteger inboundFrames = new AtomicInteger();
+    private final AtomicLong inboundBytes = new AtomicLong();
+    //set by the loop when the inbound limits are reached, cleared by whichever thread sees the backlog shrink again
+    private final AtomicBoolean readPaused = new AtomicBoolean(false);
+
+    private final OutboundQueue outbound;
+    //bytes of the head frame, header included, that went out in an earlier partial write
+    private int headWritten = 0;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param maxInboundFrames frames that may wait for a worker before reading is paused
+     * @param maxInboundBytes the same in bytes
+     */
+    public NioConnection(SocketChannel channel, SelectorLoop loop, Executor workers, BufferPool bufferPool, int maxFrameSize,
+                         int maxInboundFrames, long maxInboundBytes, OutboundQueue.Limits limits) {
+        this.channel = channel;
+        this.outbound = new OutboundQueue(limits);
+        this.loop = loop;
+        this.workers = workers;
+        this.bufferPool = bufferPool;
+        this.maxFrameSize = maxFrameSize;
+        this.maxInboundFrames = maxInboundFrames;
+        this.maxInboundBytes = maxInboundBytes;
+    }
+
+    public void setListener(ClientListener listener) {
+        this.listener = listener;
+    }
+
+    public void register(){
+        loop.register(this);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the operations the loop should select for, reads unless paused and writes while frames are queued
+     */
+    int interestOps(){
+        return (readPaused.get() ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    private boolean inboundFull(){
+        return inboundFrames.get() >= maxInboundFrames || inboundBytes.get() >= maxInboundBytes;
+    }
+
+    //reading resumes at half the limits, so a busy connection is not paused and resumed for every frame
+    private boolean inboundLow(){
+        return inboundFrames.get() <= maxInboundFrames / 2 && inboundBytes.get() <= maxInboundBytes / 2;
+    }
+
+    /**
+     * @param readBuffer the loop's shared read buffer, so idle connections do not hold one of their own
+     */
+    void onReadable(ByteBuffer readBuffer){
+        try {
+            readBuffer.clear();
+            if(channel.read(readBuffer) < 0){
+                closeReading();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()){
+                if(frame == null){
+                    while (header.hasRemaining() && readBuffer.hasRemaining()) header.put(readBuffer.get());
+                    if(header.hasRemaining()) return;
+                    header.flip();
+                    int length = header.getInt();
+                    header.clear();
+                    if(length < 0 || length > maxFrameSize){
+                        System.out.println("Closing connection, invalid frame length " + length);
+                        closeReading();
+                        return;
+                    }
+                    frame = bufferPool.acquire(length);
+                    frameLength = length;
+                    frameFilled = 0;
+                }
+                int count = Math.min(frameLength - frameFilled, readBuffer.remaining());
+                readBuffer.get(frame, frameFilled, count);
+                frameFilled += count;
+                if(frameFilled == frameLength){
+                    dispatch(ByteBuffer.wrap(frame, 0, frameLength));
+                    frame = null;
+                }
+            }
+        }
+        catch (IOException e){
+            closeReading();
+        }
+    }
+
+    /**
+     * Closes the connection from the loop thread, returning the array of a partly read frame to the pool.
+     */
+    private void closeReading(){
+        if(frame != null){
+            bufferPool.release(frame);
+            frame = null;
+        }
+        close();
+    }
+
+    /**
+     * @param headers the loop's scratch header buffers, one per frame of a gathering write
+     * @param gather the loop's scratch array, twice as long as headers
+     */
+    void onWritable(ByteBuffer[] headers, ByteBuffer[] gather){
+        try {
+            int count = 0;
+            int frames = 0;
+            for(byte[] data : outbound){
+                if(frames == headers.length) break;
+                ByteBuffer header = headers[frames++];
+                header.clear();
+                header.putInt(data.length).flip();
+                ByteBuffer payload = ByteBuffer.wrap(data);
+                if(count == 0 && headWritten > 0){
+                    header.position(Math.min(4, headWritten));
+                    payload.position(headWritten - header.position());
+                }
+                gather[count++] = header;
+                gather[count++] = payload;
+            }
+            long written = count > 0 ? channel.write(gather, 0, count) + headWritten : 0;
+            Arrays.fill(gather, 0, count, null);
+
+            byte[] data;
+            while ((data = outbound.peek()) != null && written >= 4L + data.length){
+                written -= 4L + data.length;
+                outbound.remove();
+            }
+            headWritten = (int) written;
+            //keep OP_WRITE while the socket buffer is full or more frames are queued
+            key.interestOps(interestOps());
+        }
+        catch (IOException e){
+            close();
+        }
+    }
+
+    private void dispatch(ByteBuffer frame){
+        inbound.add(frame);
+        inboundFrames.incrementAndGet();
+        inboundBytes.addAndGet(frame.limit());
+        if(inboundFull() && readPaused.compareAndSet(false, true)){
+            readPauses.increment();
+            key.interestOps(interestOps());
+            //the workers may have drained the backlog before the flag was set, then nobody else resumes reading
+            resumeIfDrained();
+        }
+        if(draining.compareAndSet(false, true)) workers.execute(this::drainInbound);
+    }
+
+    private void resumeIfDrained(){
+        if(readPaused.get() && inboundLow() && readPaused.compareAndSet(true, false)) loop.requestInterestUpdate(this);
+    }
+
+    private void drainInbound(){
+        ByteBuffer frame;
+        while ((frame = inbound.poll()) != null){
+            if(isClosed()) break;
+            try {
+                listener.handleMessage(frame.array(), 0, frame.limit());
+            }
+            catch (Exception e){
+                e.printStackTrace();
+                close();
+            }
+            finally {
+                inboundFrames.decrementAndGet();
+                inboundBytes.addAndGet(-frame.limit());
+                bufferPool.release(frame.array());
+            }
+            resumeIfDrained();
+        }
+        draining.set(false);
+        //a frame may have arrived after the last poll but before the flag was cleared
+        if(!inbound.isEmpty() && draining.compareAndSet(false, true)) workers.execute(this::drainInbound);
+    }
+
+    @Override
+    public boolean admit(int size, OutboundQueue.Lane lane, boolean droppable) {
+        return outbound.admit(size, lane, droppable, this);
+    }
+
+    @Override
+    public void writeFrame(byte[] data, OutboundQueue.Lane lane) throws IOException {
+        if(isClosed()) throw new IOException("Connection closed");
+        outbound.add(data, lane);
+        loop.requestInterestUpdate(this);
+    }
+
+    @Override
+    public void close() {
+        if(!closed.compareAndSet(false, true)) return;
+        try {
+            if(key != null) key.cancel();
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        //frames a worker already took are released by that worker
+        ByteBuffer frame;
+        while ((frame = inbound.poll()) != null) bufferPool.release(frame.array());
+        outbound.clear();
+        if(listener != null) listener.disconnectUser("Disconnected");
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
@@ -0,0 +1,57 @@
+package fi.samppa.server.clienthandling.nio;
+
+import fi.samppa.server.clienthandling.BufferPool;
+import fi.samppa.server.clienthandling.OutboundQueue;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based front end. A fixed number of loop threads serve every connection,
+ * and the decoded frames are handled on a separate worker pool.
+ */
+public class NioTransport {
+    private final SelectorLoop[] loops;
+    private final ExecutorService workers;
+    private final BufferPool bufferPool;
+    private final int maxFrameSize;
+    private final int maxInboundFrames;
+    private final long maxInboundBytes;
+    private final OutboundQueue.Limits outboundLimits;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioTransport(int loopThreads, int workerThreads, int maxFrameSize, int maxInboundFrames, long maxInboundBytes,
+                        OutboundQueue.Limits outboundLimits) throws IOException {
+        this.maxFrameSize = maxFrameSize;
+        this.maxInboundFrames = maxInboundFrames;
+        this.maxInboundBytes = maxInboundBytes;
+        this.outboundLimits = outboundLimits;
+        this.bufferPool = new BufferPool(maxFrameSize);
+        this.loops = new SelectorLoop[Math.max(1, loopThreads)];
+        for(int i = 0; i < loops.length; i++){
+            loops[i] = new SelectorLoop("nio-loop-" + i);
+        }
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), r -> {
+            Thread thread = new Thread(r, "nio-worker-" + workerId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start(){
+        for(SelectorLoop loop : loops){
+            loop.start();
+        }
+    }
+
+    public NioConnection newConnection(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        return new NioConnection(channel, loop, workers, bufferPool, maxFrameSize, maxInboundFrames, maxInboundBytes, outboundLimits);
+    }
+}
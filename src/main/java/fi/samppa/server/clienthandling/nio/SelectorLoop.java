@@ -0,0 +1,101 @@
+package fi.samppa.server.clienthandling.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop serving the reads and writes of every connection registered to it.
+ */
+public class SelectorLoop extends Thread {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    //frames written with a single gathering write
+    private static final int MAX_GATHER_FRAMES = 16;
+
+    private final Selector selector;
+    //shared by every connection of this loop
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer[] headers = new ByteBuffer[MAX_GATHER_FRAMES];
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER_FRAMES * 2];
+
+    private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+    //connections whose interest ops changed on another thread, they are only applied on the loop thread
+    private final Queue<NioConnection> interestUpdates = new ConcurrentLinkedQueue<>();
+
+    public SelectorLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        this.selector = Selector.open();
+        for(int i = 0; i < headers.length; i++){
+            headers[i] = ByteBuffer.allocate(4);
+        }
+    }
+
+    public void register(NioConnection connection){
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Reapplies {@link NioConnection#interestOps()}, after frames were queued or reading can resume.
+     */
+    public void requestInterestUpdate(NioConnection connection){
+        interestUpdates.add(connection);
+        selector.wakeup();
+    }
+
+    private void processRegistrations(){
+        NioConnection connection;
+        while ((connection = registrations.poll()) != null){
+            try {
+                connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+            }
+            catch (IOException e){
+                e.printStackTrace();
+                connection.close();
+            }
+        }
+    }
+
+    private void processInterestUpdates(){
+        NioConnection connection;
+        while ((connection = interestUpdates.poll()) != null){
+            SelectionKey key = connection.getKey();
+            if(key == null || !key.isValid()) continue;
+            key.interestOps(connection.interestOps());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()){
+            try {
+                selector.select();
+                processRegistrations();
+                processInterestUpdates();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()){
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if(key.isReadable()) connection.onReadable(readBuffer);
+                        if(key.isValid() && key.isWritable()) connection.onWritable(headers, gather);
+                    }
+                    catch (CancelledKeyException e){
+                        connection.close();
+                    }
+                }
+            }
+            catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package fi.samppa.server.clienthandling.protocol;
+
+import com.ning.compress.lzf.LZFChunk;
+import com.ning.compress.lzf.LZFDecoder;
+import com.ning.compress.lzf.LZFEncoder;
+import com.ning.compress.lzf.LZFException;
+import fi.samppa.server.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LZF compression of encrypted frames, used when the client negotiated {@link Protocol#FEATURE_LZF}.
+ * <p>
+ * Every frame is compressed before it is encrypted and starts with a flag byte telling whether the rest
+ * of it is LZF data. Frames under the threshold, or ones that would not get smaller, are sent as they are.
+ */
+public class FrameCompression {
+    public static final int UNCOMPRESSED = 0;
+    public static final int LZF = 1;
+
+    private static final LongAdder bytesIn = Metrics.counter("compression.bytes-in");
+    private static final LongAdder bytesOut = Metrics.counter("compression.bytes-out");
+    private static final LongAdder skipped = Metrics.counter("compression.skipped-frames");
+
+    private final int threshold;
+    private final int maxSize;
+
+    /**
+     * @param threshold smallest frame that is compressed
+     * @param maxSize largest frame a received frame may decompress to
+     */
+    public FrameCompression(int threshold, int maxSize) {
+        this.threshold = threshold;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the frame with its flag byte, compressed if that makes it smaller
+     */
+    public byte[] pack(byte[] data){
+        if(data.length >= threshold){
+            byte[] compressed = LZFEncoder.encode(data);
+            if(compressed.length < data.length){
+                bytesIn.add(data.length);
+                bytesOut.add(compressed.length);
+                return withFlag(LZF, compressed);
+            }
+        }
+        skipped.increment();
+        return withFlag(UNCOMPRESSED, data);
+    }
+
+    public byte[] unpack(byte[] frame) throws IOException {
+        if(frame.length == 0) throw new IOException("Missing compression flag");
+        switch (frame[0]){
+            case UNCOMPRESSED:
+                byte[] data = new byte[frame.length - 1];
+                System.arraycopy(frame, 1, data, 0, data.length);
+                return data;
+            case LZF:
+                //checked from the chunk headers so a small frame can not expand without bound
+                long size = uncompressedSize(frame, 1);
+                if(size > maxSize) throw new IOException("Decompressed frame is too large " + size);
+                return LZFDecoder.safeDecode(frame, 1, frame.length - 1);
+            default:
+                throw new IOException("Unknown compression flag " + frame[0]);
+        }
+    }
+
+    /**
+     * Sums the chunk headers, LZFDecoder.calculateUncompressedSize in compress-lzf 1.1 fails on a non zero offset.
+     */
+    private static long uncompressedSize(byte[] data, int offset) throws LZFException {
+        long size = 0;
+        while (offset < data.length){
+            if(data.length - offset < LZFChunk.HEADER_LEN_NOT_COMPRESSED
+                    || data[offset] != LZFChunk.BYTE_Z || data[offset + 1] != LZFChunk.BYTE_V) throw new LZFException("Corrupt LZF chunk header");
+            int length = uint16(data, offset + 3);
+            switch (data[offset + 2]){
+                case LZFChunk.BLOCK_TYPE_NON_COMPRESSED:
+                    size += length;
+                    offset += LZFChunk.HEADER_LEN_NOT_COMPRESSED + length;
+                    break;
+                case LZFChunk.BLOCK_TYPE_COMPRESSED:
+                    if(data.length - offset < LZFChunk.HEADER_LEN_COMPRESSED) throw new LZFException("Corrupt LZF chunk header");
+                    size += uint16(data, offset + 5);
+                    offset += LZFChunk.HEADER_LEN_COMPRESSED + length;
+                    break;
+                default:
+                    throw new LZFException("Unknown LZF chunk type " + data[offset + 2]);
+            }
+        }
+        return size;
+    }
+
+    private static int uint16(byte[] data, int offset){
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static byte[] withFlag(int flag, byte[] data){
+        byte[] frame = new byte[data.length + 1];
+        frame[0] = (byte) flag;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        return frame;
+    }
+}
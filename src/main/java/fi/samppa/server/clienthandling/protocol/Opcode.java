@@ -0,0 +1,111 @@
+package fi.samppa.server.clienthandling.protocol;
+
+import java.util.HashMap;
+
+/**
+ * Frame types of the encrypted protocol. Binary clients prefix every frame with {@link #getId()},
+ * legacy clients with {@link #getName()}.
+ */
+public enum Opcode {
+    MESSAGE(1, "message", Access.AUTHENTICATED),
+    AUTHENTICATION(2, "authentication", Access.GUEST),
+    REGISTRATION(3, "registration", Access.GUEST),
+    SESSION_KEY(4, "session-key", Access.ANY),
+    CREATE_SESSION(5, "create-session", Access.AUTHENTICATED),
+    SAVE_PASSWORD(6, "save-password", Access.AUTHENTICATED),
+    DELETE_PASSWORD(7, "delete-password", Access.AUTHENTICATED),
+    INSTRUCTION(8, "instruction", Access.AUTHENTICATED),
+
+    //only sent by the server
+    PASSWORD_DATA(9, "password-data", Access.NONE),
+    HOST_LIST(10, "host-list", Access.NONE),
+    FILE_INFO(11, "file-info", Access.NONE),
+    HOST_FILE_THUMBNAIL(12, "host-file-thumbnail", Access.NONE),
+    FILE_DATA(13, "file-data", Access.NONE),
+    //followed by the channel name, used for channels without an opcode of their own
+    CUSTOM(14, "custom", Access.NONE),
+    RESUMPTION_TICKET(15, "resumption-ticket", Access.NONE),
+    //a row count followed by that many password rows
+    PASSWORD_BATCH(16, "password-batch", Access.NONE),
+    //ends a password list, followed by the total row count
+    PASSWORD_BATCH_END(17, "password-batch-end", Access.NONE),
+
+    //followed by the last version the client has seen, 0 for none
+    SYNC_PASSWORDS(18, "sync-passwords", Access.AUTHENTICATED),
+    //a row count followed by that many changes, each the id, version, a deleted flag and the row unless deleted
+    PASSWORD_CHANGES(19, "password-changes", Access.NONE),
+    //ends a sync, followed by the version the client is at now and the total change count
+    PASSWORD_CHANGES_END(20, "password-changes-end", Access.NONE),
+    //one change in the format of PASSWORD_CHANGES, pushed when a password is saved or deleted anywhere
+    PASSWORD_CHANGED(21, "password-changed", Access.NONE),
+
+    //chunked downloads, see FileTransfer
+    //the stored file name and the plaintext offset to start or resume from
+    FILE_REQUEST(22, "file-request", Access.AUTHENTICATED),
+    //the transfer id and the offset up to which chunks have been received
+    FILE_ACK(23, "file-ack", Access.AUTHENTICATED),
+    //the transfer id (-1 if the file was not found or too many transfers are open), file name, size, starting offset and chunk size
+    FILE_TRANSFER_START(24, "file-transfer-start", Access.NONE),
+    //the transfer id, offset, length and the data
+    FILE_CHUNK(25, "file-chunk", Access.NONE),
+    //the transfer id, sent once every chunk has been acknowledged
+    FILE_TRANSFER_END(26, "file-transfer-end", Access.NONE),
+
+    //a clock value, the other end echoes it back in HEARTBEAT_ACK
+    HEARTBEAT(27, "heartbeat", Access.ANY),
+    HEARTBEAT_ACK(28, "heartbeat-ack", Access.ANY);
+
+    private static final Opcode[] BY_ID = new Opcode[256];
+    private static final HashMap<String, Opcode> BY_NAME = new HashMap<>();
+
+    static {
+        for(Opcode opcode : values()){
+            BY_ID[opcode.id] = opcode;
+            BY_NAME.put(opcode.name, opcode);
+        }
+    }
+
+    private final int id;
+    private final String name;
+    private final Access access;
+
+    Opcode(int id, String name, Access access) {
+        this.id = id;
+        this.name = name;
+        this.access = access;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isAllowed(boolean authenticated){
+        switch (access){
+            case ANY: return true;
+            case GUEST: return !authenticated;
+            case AUTHENTICATED: return authenticated;
+            default: return false;
+        }
+    }
+
+    public static Opcode fromId(int id){
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    public static Opcode fromName(String name){
+        return BY_NAME.get(name);
+    }
+
+    public enum Access {
+        ANY,
+        //only before the client has authenticated
+        GUEST,
+        AUTHENTICATED,
+        //never accepted from a client
+        NONE
+    }
+}
@@ -0,0 +1,15 @@
+package fi.samppa.server.clienthandling.protocol;
+
+import com.google.common.io.ByteArrayDataInput;
+import fi.samppa.server.clienthandling.ClientListener;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface PacketHandler {
+
+    /**
+     * @param in the decrypted frame, positioned after the opcode
+     */
+    void handle(ClientListener listener, ByteArrayDataInput in) throws IOException;
+}
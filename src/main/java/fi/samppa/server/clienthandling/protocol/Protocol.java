@@ -0,0 +1,57 @@
+package fi.samppa.server.clienthandling.protocol;
+
+/**
+ * Protocol versions and optional features a client can ask for in the key exchange.
+ * <p>
+ * A client that wants more than the legacy protocol appends its version and a feature bit mask
+ * to the "receivekey" frame. The server answers with an unencrypted "hello" frame carrying the
+ * version and features that will be used for the rest of the connection. Clients that send neither
+ * keep talking the legacy protocol.
+ */
+public final class Protocol {
+    //subchannel names prefixed to every frame, no negotiation
+    public static final int LEGACY_VERSION = 0;
+    //one byte opcodes, see Opcode
+    public static final int BINARY_VERSION = 1;
+
+    //password lists are sent as batches, see Opcode.PASSWORD_BATCH
+    public static final int BATCH_VERSION = 2;
+
+    public static final int VERSION = BATCH_VERSION;
+
+    //encrypted frames are sent as raw ciphertext instead of Base64 text
+    public static final int FEATURE_RAW_CIPHERTEXT = 1;
+
+    //frames are encrypted with the per connection AES-GCM context, see SessionCipher
+    public static final int FEATURE_AES_GCM = 2;
+
+    //the server sends a resumption ticket after the key exchange, see ResumptionTickets
+    public static final int FEATURE_RESUMPTION = 4;
+
+    //frames are LZF compressed before encryption, see FrameCompression
+    public static final int FEATURE_LZF = 8;
+
+    //changes to the user's passwords are pushed as they happen, see Opcode.PASSWORD_CHANGED
+    public static final int FEATURE_PUSH = 16;
+
+    //file data may be overtaken by control frames, every encrypted frame from the server starts with its
+    //OutboundQueue.Lane ordinal and bulk frames use their own AES-GCM nonces, see SessionCipher
+    public static final int FEATURE_LANES = 32;
+
+    //the server sends heartbeats and evicts clients that stop answering, see Heartbeats
+    public static final int FEATURE_HEARTBEAT = 64;
+
+    public static final int SUPPORTED_FEATURES = FEATURE_RAW_CIPHERTEXT | FEATURE_AES_GCM | FEATURE_RESUMPTION | FEATURE_LZF | FEATURE_PUSH
+            | FEATURE_LANES | FEATURE_HEARTBEAT;
+
+    private Protocol() {
+    }
+
+    public static int negotiateVersion(int requested){
+        return Math.max(LEGACY_VERSION, Math.min(requested, VERSION));
+    }
+
+    public static int negotiateFeatures(int requested){
+        return requested & SUPPORTED_FEATURES;
+    }
+}
@@ -57,6 +57,9 @@ public class Config extends Properties {
     public int getInt(String key){
         return Integer.parseInt(getProperty(key));
     }
+    public long getLong(String key){
+        return Long.parseLong(getProperty(key));
+    }
     public boolean getBoolean(String key){
         return Boolean.parseBoolean(getProperty(key));
     }
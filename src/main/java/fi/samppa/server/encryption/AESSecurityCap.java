@@ -2,8 +2,10 @@ package fi.samppa.server.encryption;
 
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class AESSecurityCap {
@@ -18,6 +20,13 @@ public class AESSecurityCap {
         makeKeyExchangeParams();
     }
 
+    /**
+     * A security cap for a resumed session, the secret is already known so no key exchange is made.
+     */
+    public AESSecurityCap(byte[] sharedsecret) {
+        this.sharedsecret = sharedsecret;
+    }
+
     private void makeKeyExchangeParams() {
         KeyPairGenerator kpg = null;
         try {
@@ -82,12 +91,18 @@ public class AESSecurityCap {
     }
 
     public byte[] encryptBytes(byte[] bytes) {
+        return Base64.getEncoder().encode(encryptRaw(bytes));
+    }
+
+    /**
+     * @return the ciphertext without the Base64 encoding of {@link #encryptBytes(byte[])}
+     */
+    public byte[] encryptRaw(byte[] bytes) {
         try {
             Key key = generateKey();
             Cipher c = Cipher.getInstance(ALGO);
             c.init(Cipher.ENCRYPT_MODE, key);
-            byte[] encVal = c.doFinal(bytes);
-            return Base64.getEncoder().encode(encVal);
+            return c.doFinal(bytes);
         } catch (BadPaddingException | InvalidKeyException | NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
@@ -109,16 +124,31 @@ public class AESSecurityCap {
     }
 
     public byte[] decryptBytes(byte[] encryptedData) {
+        return decryptBytes(encryptedData, 0, encryptedData.length);
+    }
+
+    public byte[] decryptBytes(byte[] encryptedData, int offset, int length) {
+        ByteBuffer decodedValue = Base64.getDecoder().decode(ByteBuffer.wrap(encryptedData, offset, length));
+        return decryptRaw(decodedValue.array(), decodedValue.arrayOffset() + decodedValue.position(), decodedValue.remaining());
+    }
+
+    /**
+     * Decrypts ciphertext that was sent without Base64 encoding.
+     */
+    public byte[] decryptRaw(byte[] encryptedData, int offset, int length) {
         try {
             Key key = generateKey();
             Cipher c = Cipher.getInstance(ALGO);
             c.init(Cipher.DECRYPT_MODE, key);
-            byte[] decordedValue = Base64.getDecoder().decode(encryptedData);
-            return c.doFinal(decordedValue);
+            return c.doFinal(encryptedData, offset, length);
         } catch (BadPaddingException | InvalidKeyException | NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
-        return encryptedData;
+        return Arrays.copyOfRange(encryptedData, offset, offset + length);
+    }
+
+    public byte[] getSharedSecret() {
+        return sharedsecret;
     }
 
     public PublicKey getPublickey() {
@@ -0,0 +1,80 @@
+package fi.samppa.server.encryption;
+
+import fi.samppa.server.Server;
+import fi.samppa.server.config.Config;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Finds the Argon2id parameters that make one verification take about the target time on this machine, and
+ * stores them in config.properties. Run it offline on the production hardware, with the server stopped so it
+ * does not skew the timings:
+ * <pre>
+ * java -cp server.jar fi.samppa.server.encryption.Argon2Calibration [target ms] [max memory KiB] [parallelism]
+ * </pre>
+ * Memory is preferred over iterations since it is what makes guessing expensive on GPUs. It starts at the maximum,
+ * which is per verification so keep argon2-threads in mind, and is halved until one iteration fits in the target,
+ * then iterations are added while they still fit. Existing hashes are upgraded as users log in.
+ */
+public class Argon2Calibration {
+    //OWASP's lowest recommended setting, used when nothing as strong fits in the target
+    public static final int MIN_MEMORY = 19456;
+    public static final int MIN_ITERATIONS = 2;
+
+    private static final int MAX_ITERATIONS = 10;
+
+    public static void main(String[] args) throws IOException {
+        long target = args.length > 0 ? Long.parseLong(args[0]) : 250;
+        int maxMemory = args.length > 1 ? Integer.parseInt(args[1]) : 65536;
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        PasswordHasher.Parameters parameters = calibrate(target, maxMemory, parallelism);
+        System.out.println(String.format("Chosen %s, %s ms per verification", parameters, measure(parameters)));
+
+        Config config = Config.initConfig(Server.DATA_FOLDER, "config.properties");
+        config.setProperty("argon2-memory", String.valueOf(parameters.getMemory()));
+        config.setProperty("argon2-iterations", String.valueOf(parameters.getIterations()));
+        config.setProperty("argon2-parallelism", String.valueOf(parameters.getParallelism()));
+        config.save();
+        System.out.println("Saved to " + Server.DATA_FOLDER + "config.properties");
+    }
+
+    /**
+     * @param target milliseconds one verification should take
+     * @param maxMemory KiB
+     */
+    public static PasswordHasher.Parameters calibrate(long target, int maxMemory, int parallelism){
+        int memory = maxMemory;
+        while (memory / 2 >= MIN_MEMORY && measure(new PasswordHasher.Parameters(memory, 1, parallelism)) > target){
+            memory /= 2;
+        }
+        int iterations = 1;
+        while (iterations < MAX_ITERATIONS && measure(new PasswordHasher.Parameters(memory, iterations + 1, parallelism)) <= target){
+            iterations++;
+        }
+        //OWASP treats less memory with more passes as equal, so it is the product that has to reach the minimum
+        if((long) memory * iterations < (long) MIN_MEMORY * MIN_ITERATIONS){
+            System.out.println("This machine can not reach OWASP's minimum within the target, using it anyway");
+            return new PasswordHasher.Parameters(MIN_MEMORY, MIN_ITERATIONS, parallelism);
+        }
+        return new PasswordHasher.Parameters(memory, iterations, parallelism);
+    }
+
+    /**
+     * @return the median milliseconds of a verification, after a warm up
+     */
+    static long measure(PasswordHasher.Parameters parameters){
+        Argon2PasswordEncoder encoder = parameters.newEncoder();
+        String hash = encoder.encode("calibration");
+        long[] times = new long[5];
+        for(int i = 0; i < times.length; i++){
+            long start = System.nanoTime();
+            encoder.matches("calibration", hash);
+            times[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(times);
+        return times[times.length / 2];
+    }
+}
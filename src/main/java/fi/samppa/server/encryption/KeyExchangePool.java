@@ -0,0 +1,49 @@
+package fi.samppa.server.encryption;
+
+import fi.samppa.server.metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of {@link AESSecurityCap}s whose EC key pair and key agreement are already
+ * initialised. Background threads keep it full, so accepting a connection only dequeues one.
+ */
+public class KeyExchangePool {
+    private final ArrayBlockingQueue<AESSecurityCap> ready;
+
+    private final LongAdder hits = Metrics.counter("keyexchange-pool.hits");
+    private final LongAdder misses = Metrics.counter("keyexchange-pool.misses");
+
+    public KeyExchangePool(int size, int refillThreads) {
+        this.ready = new ArrayBlockingQueue<>(Math.max(1, size));
+        Metrics.gauge("keyexchange-pool.size", ready::size);
+        for(int i = 0; i < Math.max(1, refillThreads); i++){
+            Thread thread = new Thread(this::refill, "keyexchange-pool-" + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    private void refill(){
+        try {
+            while (true){
+                ready.put(new AESSecurityCap()); //blocks while the pool is full
+            }
+        }
+        catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Never blocks.
+     * @return a ready key exchange, or null if the pool has run dry
+     */
+    public AESSecurityCap poll(){
+        AESSecurityCap securityCap = ready.poll();
+        if(securityCap != null) hits.increment();
+        else misses.increment();
+        return securityCap;
+    }
+}
@@ -0,0 +1,176 @@
+package fi.samppa.server.encryption;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import fi.samppa.server.metrics.LatencyHistogram;
+import fi.samppa.server.metrics.Metrics;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs every Argon2 hash and verification on a pool of its own, one thread per core by default, so a login storm
+ * can not take the CPU from the rest of the server. Callers wait for their result, but when the queue is full they
+ * get a {@link BusyException} right away instead of waiting in line.
+ * <p>
+ * New hashes use the configured {@link Parameters}, see {@link Argon2Calibration}. Every hash records the parameters it
+ * was made with, so older hashes keep verifying and are replaced with {@link #rehash(String, String, Consumer)}.
+ */
+public class PasswordHasher {
+    public static final int SALT_LENGTH = 16;
+    public static final int HASH_LENGTH = 32;
+
+    //$argon2id$v=19$m=19456,t=2,p=1$salt$hash
+    private static final Pattern ENCODED = Pattern.compile("^\\$argon2id\\$v=19\\$m=(\\d+),t=(\\d+),p=(\\d+)\\$");
+
+    private final Parameters parameters;
+    private final Argon2PasswordEncoder encoder;
+    private final ThreadPoolExecutor executor;
+
+    private final LatencyHistogram latency = LatencyHistogram.register("argon2.latency", 60);
+    private final LatencyHistogram queueWait = LatencyHistogram.register("argon2.queue-wait", 60);
+    private final LongAdder rejected = Metrics.counter("argon2.rejected");
+    private final LongAdder rehashed = Metrics.counter("argon2.rehashed");
+
+    /**
+     * @param parameters what new hashes are made with
+     * @param threads 0 for one per available core
+     * @param queueSize hashes that may wait for a thread
+     */
+    public PasswordHasher(Parameters parameters, int threads, int queueSize) {
+        this.parameters = parameters;
+        this.encoder = parameters.newEncoder();
+        if(threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                new ThreadFactoryBuilder().setNameFormat("argon2-%d").setDaemon(true).build());
+        Metrics.gauge("argon2.queued", executor.getQueue()::size);
+    }
+
+    public String encode(String rawPassword) throws BusyException {
+        return run(() -> encoder.encode(rawPassword));
+    }
+
+    public boolean matches(String rawPassword, String hash) throws BusyException {
+        return run(() -> encoder.matches(rawPassword, hash));
+    }
+
+    /**
+     * @return true if the hash was not made with the current parameters
+     */
+    public boolean needsRehash(String hash){
+        Matcher matcher = ENCODED.matcher(hash);
+        return !matcher.find() || !parameters.equals(new Parameters(Integer.parseInt(matcher.group(1)),
+                Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3))));
+    }
+
+    /**
+     * Hashes a password that was just verified against an outdated hash again with the current parameters, in the
+     * background so the login does not wait for it. Skipped while the queue is full, the next login tries again.
+     * @param store saves the new hash
+     */
+    public void rehash(String rawPassword, String hash, Consumer<String> store){
+        if(!needsRehash(hash)) return;
+        try {
+            executor.execute(() -> {
+                store.accept(encoder.encode(rawPassword));
+                rehashed.increment();
+            });
+        }
+        catch (RejectedExecutionException ignored){
+        }
+    }
+
+    private <T> T run(Callable<T> task) throws BusyException {
+        long queuedAt = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                long start = System.nanoTime();
+                queueWait.record(start - queuedAt);
+                try {
+                    return task.call();
+                }
+                finally {
+                    latency.record(System.nanoTime() - start);
+                }
+            });
+        }
+        catch (RejectedExecutionException e){
+            rejected.increment();
+            throw new BusyException();
+        }
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new BusyException();
+        }
+        catch (ExecutionException e){
+            throw new IllegalStateException("Argon2 failed", e.getCause());
+        }
+    }
+
+    /**
+     * Argon2id cost parameters.
+     */
+    public static class Parameters {
+        //KiB
+        private final int memory;
+        private final int iterations;
+        private final int parallelism;
+
+        public Parameters(int memory, int iterations, int parallelism) {
+            this.memory = memory;
+            this.iterations = iterations;
+            this.parallelism = parallelism;
+        }
+
+        public int getMemory() {
+            return memory;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        Argon2PasswordEncoder newEncoder(){
+            return new Argon2PasswordEncoder(SALT_LENGTH, HASH_LENGTH, parallelism, memory, iterations);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Parameters that = (Parameters) o;
+            return memory == that.memory && iterations == that.iterations && parallelism == that.parallelism;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(memory, iterations, parallelism);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("m=%s,t=%s,p=%s", memory, iterations, parallelism);
+        }
+    }
+
+    /**
+     * Thrown when the hashing queue is full, the request should be answered with a busy status and retried later.
+     */
+    public static class BusyException extends Exception {
+        public BusyException() {
+            super("Password hashing queue is full");
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package fi.samppa.server.encryption;
+
+import fi.samppa.server.metrics.Metrics;
+
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Issues and redeems session resumption tickets, so a reconnecting client can skip the ECDH key exchange.
+ * <p>
+ * A ticket is the resumption secret of a connection together with a random id and an expiry time,
+ * sealed with AES-GCM under a key that only lives in this process. The client never reads it, it derives the
+ * same resumption secret itself with {@link #resumptionSecret(byte[])} and sends the ticket back on reconnect.
+ * Tickets can be redeemed once, used ids are kept until their ticket expires. When that replay cache is full
+ * resumption is refused and the client falls back to a full key exchange.
+ */
+public class ResumptionTickets {
+    public static final String RESUMPTION = "PasswordServer resumption";
+    public static final String RESUMED_SESSION = "PasswordServer resumed session";
+
+    public static final int SECRET_LENGTH = 32;
+    public static final int RANDOM_LENGTH = 32;
+
+    private static final String ALGO = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    private static final int ID_LENGTH = 16;
+    private static final int TAG_BITS = 128;
+
+    private final SecureRandom random = new SecureRandom();
+    private final SecretKeySpec ticketKey;
+    private final long lifetimeMillis;
+    private final int maxReplayEntries;
+
+    //id of every redeemed ticket that has not expired yet, mapped to its expiry time
+    private final ConcurrentHashMap<ByteBuffer, Long> redeemed = new ConcurrentHashMap<>();
+
+    private final LongAdder issued = Metrics.counter("resumption.tickets-issued");
+    private final LongAdder resumed = Metrics.counter("resumption.resumed");
+    private final LongAdder rejected = Metrics.counter("resumption.rejected");
+
+    public ResumptionTickets(long lifetimeSeconds, int maxReplayEntries) {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        this.ticketKey = new SecretKeySpec(key, "AES");
+        this.lifetimeMillis = lifetimeSeconds * 1000;
+        this.maxReplayEntries = maxReplayEntries;
+        Metrics.gauge("resumption.replay-cache-size", redeemed::size);
+    }
+
+    public long getLifetimeSeconds() {
+        return lifetimeMillis / 1000;
+    }
+
+    /**
+     * @param sharedSecret the secret the connection was encrypted with
+     */
+    public byte[] issue(byte[] sharedSecret) throws GeneralSecurityException {
+        ByteBuffer plain = ByteBuffer.allocate(ID_LENGTH + 8 + SECRET_LENGTH);
+        byte[] id = new byte[ID_LENGTH];
+        random.nextBytes(id);
+        plain.put(id);
+        plain.putLong(System.currentTimeMillis() + lifetimeMillis);
+        plain.put(resumptionSecret(sharedSecret));
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance(ALGO);
+        cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(TAG_BITS, nonce));
+        byte[] sealed = cipher.doFinal(plain.array());
+
+        byte[] ticket = new byte[NONCE_LENGTH + sealed.length];
+        System.arraycopy(nonce, 0, ticket, 0, NONCE_LENGTH);
+        System.arraycopy(sealed, 0, ticket, NONCE_LENGTH, sealed.length);
+        issued.increment();
+        return ticket;
+    }
+
+    /**
+     * @return the resumption secret of the ticket, or null if it is forged, expired or was already redeemed
+     */
+    public @Nullable byte[] redeem(byte[] ticket){
+        if(ticket.length <= NONCE_LENGTH){
+            rejected.increment();
+            return null;
+        }
+        ByteBuffer plain;
+        try {
+            Cipher cipher = Cipher.getInstance(ALGO);
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(TAG_BITS, ticket, 0, NONCE_LENGTH));
+            plain = ByteBuffer.wrap(cipher.doFinal(ticket, NONCE_LENGTH, ticket.length - NONCE_LENGTH));
+        }
+        catch (GeneralSecurityException e){
+            rejected.increment();
+            return null;
+        }
+        byte[] id = new byte[ID_LENGTH];
+        plain.get(id);
+        long expiry = plain.getLong();
+        byte[] secret = new byte[SECRET_LENGTH];
+        plain.get(secret);
+
+        long now = System.currentTimeMillis();
+        if(expiry < now || !markRedeemed(ByteBuffer.wrap(id), expiry, now)){
+            rejected.increment();
+            return null;
+        }
+        resumed.increment();
+        return secret;
+    }
+
+    private boolean markRedeemed(ByteBuffer id, long expiry, long now){
+        if(redeemed.size() >= maxReplayEntries){
+            redeemed.values().removeIf(time -> time < now);
+            //forgetting an unexpired id would let its ticket be replayed
+            if(redeemed.size() >= maxReplayEntries) return false;
+        }
+        return redeemed.putIfAbsent(id, expiry) == null;
+    }
+
+    /**
+     * The secret bound to the tickets of a connection, derived from its shared secret with HKDF-SHA256 (empty salt)
+     * and the info string {@link #RESUMPTION}.
+     */
+    public static byte[] resumptionSecret(byte[] sharedSecret) throws GeneralSecurityException {
+        byte[] prk = SessionCipher.hkdfExtract(new byte[32], sharedSecret);
+        return SessionCipher.hkdfExpand(prk, RESUMPTION, SECRET_LENGTH);
+    }
+
+    /**
+     * The shared secret of a resumed connection. Both randoms are used as the HKDF salt, so every resumed
+     * connection gets fresh keys even though the resumption secret is the same.
+     */
+    public static byte[] resumedSecret(byte[] resumptionSecret, byte[] clientRandom, byte[] serverRandom) throws GeneralSecurityException {
+        byte[] salt = new byte[clientRandom.length + serverRandom.length];
+        System.arraycopy(clientRandom, 0, salt, 0, clientRandom.length);
+        System.arraycopy(serverRandom, 0, salt, clientRandom.length, serverRandom.length);
+        byte[] prk = SessionCipher.hkdfExtract(salt, resumptionSecret);
+        return SessionCipher.hkdfExpand(prk, RESUMED_SESSION, SECRET_LENGTH);
+    }
+
+    public byte[] newRandom(){
+        byte[] bytes = new byte[RANDOM_LENGTH];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
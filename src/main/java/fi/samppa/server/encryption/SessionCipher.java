@@ -0,0 +1,141 @@
+package fi.samppa.server.encryption;
+
+import fi.samppa.server.clienthandling.protocol.Protocol;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * AES-GCM context of a single connection, created once after the ECDH key exchange.
+ * <p>
+ * Both directions get their own 256 bit key and 4 byte nonce prefix, expanded with HKDF-SHA256
+ * (empty salt) from the ECDH shared secret using the info strings {@link #CLIENT_TO_SERVER} and
+ * {@link #SERVER_TO_CLIENT}. The 12 byte nonce of a frame is the prefix followed by a big endian
+ * 64 bit counter that starts at zero and grows by one for every frame in that direction. The counter
+ * is not sent, both ends keep track of it, so frames must be encrypted in the order they are written.
+ * A frame is the ciphertext followed by the 16 byte tag.
+ * <p>
+ * Server to client frames on the bulk lane may be overtaken by control frames, so they get a direction of
+ * their own, expanded with the info string {@link #SERVER_TO_CLIENT_BULK}, see {@link Protocol#FEATURE_LANES}.
+ */
+public class SessionCipher {
+    public static final String CLIENT_TO_SERVER = "PasswordServer client to server";
+    public static final String SERVER_TO_CLIENT = "PasswordServer server to client";
+    public static final String SERVER_TO_CLIENT_BULK = SERVER_TO_CLIENT + " bulk";
+
+    private static final String ALGO = "AES/GCM/NoPadding";
+    private static final int KEY_LENGTH = 32;
+    private static final int PREFIX_LENGTH = 4;
+    private static final int TAG_BITS = 128;
+
+    private final Direction encrypt;
+    private final Direction decrypt;
+    private final Direction bulk;
+
+    private SessionCipher(Direction encrypt, Direction decrypt, Direction bulk) {
+        this.encrypt = encrypt;
+        this.decrypt = decrypt;
+        this.bulk = bulk;
+    }
+
+    /**
+     * @return the server side context of the connection
+     */
+    public static SessionCipher forServer(byte[] sharedSecret) throws GeneralSecurityException {
+        byte[] prk = hkdfExtract(new byte[32], sharedSecret);
+        return new SessionCipher(new Direction(hkdfExpand(prk, SERVER_TO_CLIENT)), new Direction(hkdfExpand(prk, CLIENT_TO_SERVER)),
+                new Direction(hkdfExpand(prk, SERVER_TO_CLIENT_BULK)));
+    }
+
+    /**
+     * @return the client side context, the mirror image of {@link #forServer(byte[])}
+     */
+    public static SessionCipher forClient(byte[] sharedSecret) throws GeneralSecurityException {
+        byte[] prk = hkdfExtract(new byte[32], sharedSecret);
+        return new SessionCipher(new Direction(hkdfExpand(prk, CLIENT_TO_SERVER)), new Direction(hkdfExpand(prk, SERVER_TO_CLIENT)),
+                new Direction(hkdfExpand(prk, SERVER_TO_CLIENT_BULK)));
+    }
+
+    /**
+     * Not thread safe, the caller must keep the encryption order equal to the order frames are written.
+     */
+    public byte[] encrypt(byte[] data) throws GeneralSecurityException {
+        return encrypt.apply(Cipher.ENCRYPT_MODE, data, 0, data.length);
+    }
+
+    /**
+     * @throws javax.crypto.AEADBadTagException if the frame was tampered with or arrived out of order
+     */
+    public byte[] decrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+        return decrypt.apply(Cipher.DECRYPT_MODE, data, offset, length);
+    }
+
+    /**
+     * Encrypts a server to client bulk lane frame, only used on the server side.
+     */
+    public byte[] encryptBulk(byte[] data) throws GeneralSecurityException {
+        return bulk.apply(Cipher.ENCRYPT_MODE, data, 0, data.length);
+    }
+
+    /**
+     * Decrypts a server to client bulk lane frame, only used on the client side.
+     */
+    public byte[] decryptBulk(byte[] data, int offset, int length) throws GeneralSecurityException {
+        return bulk.apply(Cipher.DECRYPT_MODE, data, offset, length);
+    }
+
+    static byte[] hkdfExtract(byte[] salt, byte[] inputKey) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        return mac.doFinal(inputKey);
+    }
+
+    static byte[] hkdfExpand(byte[] prk, String info) throws GeneralSecurityException {
+        return hkdfExpand(prk, info, KEY_LENGTH + PREFIX_LENGTH);
+    }
+
+    static byte[] hkdfExpand(byte[] prk, String info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] infoBytes = info.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream okm = new ByteArrayOutputStream();
+        byte[] block = new byte[0];
+        for(int i = 1; okm.size() < length; i++){
+            mac.update(block);
+            mac.update(infoBytes);
+            mac.update((byte) i);
+            block = mac.doFinal();
+            okm.write(block, 0, block.length);
+        }
+        return Arrays.copyOf(okm.toByteArray(), length);
+    }
+
+    private static class Direction {
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] nonce = new byte[12];
+        private long counter = 0;
+
+        Direction(byte[] keyMaterial) throws GeneralSecurityException {
+            this.cipher = Cipher.getInstance(ALGO);
+            this.key = new SecretKeySpec(keyMaterial, 0, KEY_LENGTH, "AES");
+            System.arraycopy(keyMaterial, KEY_LENGTH, nonce, 0, PREFIX_LENGTH);
+        }
+
+        byte[] apply(int mode, byte[] data, int offset, int length) throws GeneralSecurityException {
+            long value = counter++;
+            for(int i = 11; i >= PREFIX_LENGTH; i--){
+                nonce[i] = (byte) value;
+                value >>>= 8;
+            }
+            cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, nonce));
+            return cipher.doFinal(data, offset, length);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fi.samppa.server.encryption;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Keyed lookup values for stored sessions. A session row keeps the Argon2 hash of its id as the verifier and
+ * HMAC-SHA256(key, id) as the selector, so a resume finds its row with one indexed query and runs a single Argon2
+ * check. The key is kept in a file of its own, outside the database, so a copy of the sessions table alone can not
+ * be used to guess session ids faster than Argon2 allows.
+ */
+public class SessionSelectors {
+    private final SecretKeySpec key;
+
+    private SessionSelectors(byte[] key) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    /**
+     * Reads the key from the file, generating it on first use.
+     */
+    public static SessionSelectors load(File file) throws IOException {
+        if(!file.exists()){
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), Base64.getEncoder().encode(key));
+        }
+        return new SessionSelectors(Base64.getDecoder().decode(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim()));
+    }
+
+    /**
+     * @return the selector of a session id, 64 hex characters
+     */
+    public String selector(String sessionId){
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            byte[] digest = mac.doFinal(sessionId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for(byte b : digest) builder.append(String.format("%02x", b));
+            return builder.toString();
+        }
+        catch (GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package fi.samppa.server.files;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import fi.samppa.server.metrics.Metrics;
+import org.springframework.security.crypto.encrypt.BytesEncryptor;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Thumbnails of uploaded images, stored encrypted next to the user's files in user_files/&lt;uuid&gt;/thumbs
+ * under the same name as the file they belong to.
+ * <p>
+ * Thumbnails are generated in the background by a bounded pool, an upload never waits for one and the
+ * thumbnail is skipped when the queue is full. Scaling only uses {@link BufferedImage}, so it works on a
+ * headless server. Decrypted thumbnails are kept in a cache bounded by their total size, least recently
+ * used first out, and the entry of a file is dropped when the file is deleted or replaced.
+ */
+public class Thumbnails {
+    public static final String FOLDER = "thumbs";
+
+    private final int size;
+    private final long maxPixels;
+    private final ThreadPoolExecutor generators;
+    private final ExecutorService decryptors;
+    private final Cache<File, byte[]> cache;
+
+    private final LongAdder generated = Metrics.counter("thumbnails.generated");
+    private final LongAdder skipped = Metrics.counter("thumbnails.skipped");
+
+    /**
+     * @param size longest side of a thumbnail in pixels
+     * @param maxPixels larger images get no thumbnail, so a small file can not make the server decode a huge image
+     * @param cacheBytes total size of the decrypted thumbnails kept in memory
+     */
+    public Thumbnails(int size, long maxPixels, int generatorThreads, int queueSize, int decryptThreads, long cacheBytes) {
+        this.size = size;
+        this.maxPixels = maxPixels;
+        this.generators = new ThreadPoolExecutor(generatorThreads, generatorThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), daemonThreads("thumbnail-generator-%d"));
+        this.decryptors = Executors.newFixedThreadPool(decryptThreads, daemonThreads("thumbnail-decryptor-%d"));
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(cacheBytes)
+                .weigher((File file, byte[] data) -> data.length)
+                .recordStats()
+                .build();
+        Metrics.gauge("thumbnails.queued", generators.getQueue()::size);
+        Metrics.gauge("thumbnails.cache-hits", () -> cache.stats().hitCount());
+        Metrics.gauge("thumbnails.cache-misses", () -> cache.stats().missCount());
+        Metrics.gauge("thumbnails.cached", cache::size);
+    }
+
+    private static ThreadFactory daemonThreads(String nameFormat){
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+
+    public static File getFolder(UUID user){
+        return new File("user_files/" + user + "/" + FOLDER);
+    }
+
+    /**
+     * Queues a thumbnail for a plaintext image. The source is deleted once it has been read,
+     * or right away if the queue is full. Files that are not images get no thumbnail.
+     * @param name the stored name of the file the thumbnail belongs to
+     */
+    public void generate(UUID user, String name, File source, BytesEncryptor encryptor){
+        try {
+            generators.execute(() -> {
+                try {
+                    write(user, name, source, encryptor);
+                }
+                catch (Exception e){
+                    e.printStackTrace();
+                }
+                finally {
+                    source.delete();
+                }
+            });
+        }
+        catch (RejectedExecutionException e){
+            skipped.increment();
+            source.delete();
+        }
+    }
+
+    private void write(UUID user, String name, File source, BytesEncryptor encryptor) throws IOException {
+        BufferedImage image = read(source);
+        if(image == null){
+            //the file may have replaced an image with the same name
+            delete(user, name);
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(scale(image), "jpg", out);
+        byte[] thumbnail = out.toByteArray();
+
+        File file = new File(getFolder(user), name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), encryptor.encrypt(thumbnail));
+        cache.put(file.getAbsoluteFile(), thumbnail);
+        generated.increment();
+    }
+
+    /**
+     * @return the image, or null if the file is not an image or has too many pixels
+     */
+    private BufferedImage read(File source) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source)){
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : Collections.emptyIterator();
+            if(!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                if((long) reader.getWidth(0) * reader.getHeight(0) > maxPixels) return null;
+                return reader.read(0);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage scale(BufferedImage source){
+        double ratio = Math.min(1, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int w = Math.max(1, (int) (source.getWidth() * ratio));
+        int h = Math.max(1, (int) (source.getHeight() * ratio));
+        //RGB so images with an alpha channel can still be written as JPEG
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = scaled.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(source, 0, 0, w, h, Color.WHITE, null);
+        g2d.dispose();
+        return scaled;
+    }
+
+    /**
+     * Decrypts the user's thumbnails in parallel and hands each one to the consumer as soon as it is ready,
+     * on the thread that decrypted it. Returns once every thumbnail has been handled.
+     * @param consumer gets the name of the file and its decrypted thumbnail
+     */
+    public void forEach(UUID user, BytesEncryptor encryptor, BiConsumer<String, byte[]> consumer){
+        File[] files = getFolder(user).listFiles(File::isFile);
+        if(files == null) return;
+        List<CompletableFuture<Void>> futures = new ArrayList<>(files.length);
+        for(File file : files){
+            futures.add(CompletableFuture.runAsync(() -> {
+                byte[] thumbnail = get(file, encryptor);
+                if(thumbnail != null) consumer.accept(file.getName(), thumbnail);
+            }, decryptors));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * @return the decrypted thumbnail, or null if it can not be read
+     */
+    private byte[] get(File file, BytesEncryptor encryptor){
+        try {
+            return cache.get(file.getAbsoluteFile(), () -> encryptor.decrypt(Files.readAllBytes(file.toPath())));
+        }
+        catch (ExecutionException | UncheckedExecutionException e){
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the thumbnail of a deleted file.
+     */
+    public void delete(UUID user, String name){
+        File file = new File(getFolder(user), name);
+        cache.invalidate(file.getAbsoluteFile());
+        file.delete();
+    }
+}
@@ -0,0 +1,83 @@
+package fi.samppa.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of recent latencies with logarithmic microsecond buckets (four per power of two),
+ * so percentiles are accurate to about 20%. Only the last one or two windows are counted, so a
+ * percentile reflects recent traffic rather than everything since start up.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    private final long windowNanos;
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+    private volatile long windowStart = System.nanoTime();
+
+    public LatencyHistogram(long windowSeconds) {
+        this.windowNanos = windowSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * Registers gauges for the 50th and 99th percentile in microseconds, named prefix + "-p50-us" and "-p99-us".
+     */
+    public static LatencyHistogram register(String prefix, long windowSeconds){
+        LatencyHistogram histogram = new LatencyHistogram(windowSeconds);
+        Metrics.gauge(prefix + "-p50-us", () -> histogram.percentile(0.50));
+        Metrics.gauge(prefix + "-p99-us", () -> histogram.percentile(0.99));
+        return histogram;
+    }
+
+    public void record(long nanos){
+        rotate();
+        current.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+    }
+
+    /**
+     * @return the upper bound in microseconds of the bucket holding the given fraction of recent samples, 0 if there are none
+     */
+    public long percentile(double fraction){
+        rotate();
+        AtomicLongArray current = this.current;
+        AtomicLongArray previous = this.previous;
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) total += current.get(i) + previous.get(i);
+        if(total == 0) return 0;
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += current.get(i) + previous.get(i);
+            if(seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private void rotate(){
+        long now = System.nanoTime();
+        long start = windowStart;
+        if(now - start < windowNanos) return;
+        synchronized (this){
+            if(windowStart != start) return;
+            //a sample recorded into the old array during the swap is lost, which is fine for a metric
+            previous = current;
+            current = new AtomicLongArray(BUCKETS);
+            windowStart = now;
+        }
+    }
+
+    static int bucket(long micros){
+        if(micros < 1) return 0;
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        //the two bits below the highest one pick the sub bucket
+        int sub = power >= 2 ? (int) (micros >>> (power - 2)) & (SUB_BUCKETS - 1) : (int) (micros << (2 - power)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, power * SUB_BUCKETS + sub);
+    }
+
+    static long upperBound(int bucket){
+        int power = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return ((1L << power) * (SUB_BUCKETS + sub + 1)) / SUB_BUCKETS;
+    }
+}
@@ -19,7 +19,7 @@ public class AsyncDatabaseThread {
         start();
     }
 
-    public synchronized void newTask(boolean async, Runnable runnable){
+    public void newTask(boolean async, Runnable runnable){
         if(!async){
             runnable.run();
             return;
@@ -27,7 +27,7 @@ public class AsyncDatabaseThread {
         tasks.add(runnable);
     }
 
-    public synchronized void newTask(Runnable runnable){
+    public void newTask(Runnable runnable){
         newTask(true, runnable);
     }
 
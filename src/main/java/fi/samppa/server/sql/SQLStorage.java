@@ -93,6 +93,10 @@ public abstract class SQLStorage implements ISQLStorage {
         storageDriver.addTable(connection, sqlTableManager);
     }
 
+    public void addIndex(Connection connection, String table, String name, String columns) throws SQLException {
+        storageDriver.addIndex(connection, table, name, columns);
+    }
+
     @Override
     public abstract void createTables() throws SQLException;
 
@@ -0,0 +1,67 @@
+package fi.samppa.server.sql;
+
+import fi.samppa.server.metrics.Metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent callers asking for the same key share one query. The first caller runs it, the ones that arrive
+ * while it is running wait for its result instead of running their own, and the next caller after that queries again,
+ * so nothing is cached. The result is shared between the callers, so it must not be modified.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder queries;
+    private final LongAdder coalesced;
+
+    /**
+     * @param name the metrics prefix
+     */
+    public SingleFlight(String name) {
+        this.queries = Metrics.counter(name + ".queries");
+        this.coalesced = Metrics.counter(name + ".coalesced");
+    }
+
+    public V get(K key, Supplier<V> query){
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+        if(running != null){
+            coalesced.increment();
+            try {
+                return running.join();
+            }
+            catch (CompletionException e){
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if(e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw e;
+            }
+        }
+        queries.increment();
+        try {
+            V value = query.get();
+            future.complete(value);
+            return value;
+        }
+        //anything, errors included, or the callers waiting for this query would wait forever
+        catch (Throwable e){
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Makes callers arriving after a write to the key run a query of their own instead of joining one that may have
+     * read the data from before the write.
+     */
+    public void forget(K key){
+        inFlight.remove(key);
+    }
+}
@@ -104,6 +104,13 @@ public class LocalSQLLiteDriver extends StorageDriver{
         sqlStorage.onTableCreate(tableManager.getTable());
     }
 
+    @Override
+    public void addIndex(Connection connection, String table, String name, String columns) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(String.format("CREATE INDEX IF NOT EXISTS %s ON %s(%s)", name, table, columns));
+        statement.executeUpdate();
+        statement.close();
+    }
+
     @Override
     public void insertOrUpdate(String table, String primaryKey, List<String> columnNames, List<Object> columnValues,
                                List<String> onDuplicateColumnNames, List<Object> onDuplicateColumnValues, String operation){
@@ -125,6 +125,20 @@ public class RemoteHikariDriver extends StorageDriver{
         sqlStorage.onTableCreate(tableManager.getTable());
     }
 
+    @Override
+    public void addIndex(Connection connection, String table, String name, String columns) throws SQLException {
+        PreparedStatement check = connection.prepareStatement("SELECT 1 FROM `information_schema`.`statistics` WHERE `table_schema` = DATABASE() AND `table_name` = ? AND `index_name` = ?");
+        check.setString(1, table);
+        check.setString(2, name);
+        ResultSet resultSet = check.executeQuery();
+        boolean exists = resultSet.next();
+        resultSet.close();
+        if(exists) return;
+        PreparedStatement statement = connection.prepareStatement(String.format("CREATE INDEX %s ON %s(%s)", name, table, columns));
+        statement.executeUpdate();
+        Server.logger.info("[MySQL] Index " + name + " created on " + table);
+    }
+
     @Override
     public boolean databaseIsEmpty() {
         try {
@@ -171,7 +185,8 @@ public class RemoteHikariDriver extends StorageDriver{
         String username = sqlSettings.getProperty("username");
         String password = sqlSettings.getProperty("password");
         hikari = new HikariDataSource();
-        hikari.setJdbcUrl(String.format("jdbc:mysql://%s:%s/%s?characterEncoding=UTF-8", host, port, database));
+        //without useCursorFetch Connector/J ignores the fetch size and reads the whole result into memory
+        hikari.setJdbcUrl(String.format("jdbc:mysql://%s:%s/%s?characterEncoding=UTF-8&useCursorFetch=true", host, port, database));
         setupParameters(hikari);
         hikari.setUsername(username);
         hikari.setPassword(password);
@@ -85,6 +85,11 @@ public abstract class StorageDriver {
 
     public abstract void addTable(Connection connection, SQLTableManager tableManager) throws SQLException;
 
+    /**
+     * Creates the index unless one with the same name already exists on the table.
+     */
+    public abstract void addIndex(Connection connection, String table, String name, String columns) throws SQLException;
+
     public abstract boolean databaseIsEmpty();
 
     public void connectToDatabase() throws SQLException {
@@ -0,0 +1,85 @@
+package fi.samppa.server.clienthandling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    private static final int MAX_FRAME = 1 << 20;
+
+    @Test
+    void sizesRoundUpToTheirPowerOfTwoClass(){
+        BufferPool pool = new BufferPool(MAX_FRAME);
+        assertEquals(512, pool.acquire(1).length);
+        assertEquals(512, pool.acquire(512).length);
+        assertEquals(1024, pool.acquire(513).length);
+        assertEquals(65536, pool.acquire(40000).length);
+        assertEquals(MAX_FRAME, pool.acquire(MAX_FRAME).length);
+    }
+
+    @Test
+    void releasedArrayIsReusedWithinItsClass(){
+        BufferPool pool = new BufferPool(MAX_FRAME);
+        byte[] buffer = pool.acquire(3000);
+        pool.release(buffer);
+        //any size rounding to the same class gets the same array back
+        assertSame(buffer, pool.acquire(2049));
+        //the class is empty again, so the next one is a new array
+        assertNotSame(buffer, pool.acquire(3000));
+    }
+
+    @Test
+    void classesDoNotShareArrays(){
+        BufferPool pool = new BufferPool(MAX_FRAME);
+        byte[] small = pool.acquire(600);
+        pool.release(small);
+        byte[] large = pool.acquire(5000);
+        assertNotSame(small, large);
+        assertEquals(8192, large.length);
+        assertSame(small, pool.acquire(600));
+    }
+
+    @Test
+    void sizesAboveTheMaximumAreNotPooled(){
+        BufferPool pool = new BufferPool(MAX_FRAME);
+        byte[] oversized = pool.acquire(MAX_FRAME + 1);
+        assertEquals(MAX_FRAME + 1, oversized.length);
+
+        byte[] twice = new byte[MAX_FRAME * 2];
+        pool.release(twice);
+        assertNotSame(twice, pool.acquire(MAX_FRAME * 2));
+    }
+
+    @Test
+    void foreignArraysAreIgnored(){
+        BufferPool pool = new BufferPool(MAX_FRAME);
+        byte[] odd = new byte[1000];
+        pool.release(odd);
+        assertNotSame(odd, pool.acquire(1000));
+
+        byte[] tiny = new byte[256];
+        pool.release(tiny);
+        assertNotSame(tiny, pool.acquire(256));
+    }
+
+    @Test
+    void idleArraysPerClassAreBounded(){
+        BufferPool pool = new BufferPool(MAX_FRAME);
+        //a bucket keeps at most 4 MB idle, so four 1 MB arrays
+        Set<byte[]> released = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(int i = 0; i < 8; i++){
+            byte[] buffer = new byte[MAX_FRAME];
+            released.add(buffer);
+            pool.release(buffer);
+        }
+        int reused = 0;
+        for(int i = 0; i < 8; i++){
+            if(released.contains(pool.acquire(MAX_FRAME))) reused++;
+        }
+        assertEquals(4, reused);
+    }
+}
@@ -0,0 +1,151 @@
+package fi.samppa.server.clienthandling;
+
+import fi.samppa.server.MainDatabase;
+import fi.samppa.server.Server;
+import fi.samppa.server.config.Config;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.security.crypto.keygen.KeyGenerators;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Connects and disconnects clients as fast as possible while they authenticate, checking that the server's
+ * registry of live connections ends up with exactly the clients that are still connected.
+ */
+class ConnectionRegistryStressTest {
+    private static final int USERS = 16;
+    private static final int THREADS = 8;
+    private static final int CYCLES_PER_THREAD = 2500;
+    //the rest only connect and disconnect, authenticating derives a key which is most of the cost of a cycle
+    private static final int AUTHENTICATE_EVERY = 4;
+
+    private static Server server;
+    private static final List<MainDatabase.UserData> users = new ArrayList<>();
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        File folder = Files.createTempDirectory("registry-test").toFile();
+        folder.deleteOnExit();
+        Server.DATA_FOLDER = folder.getPath() + "/";
+        MainDatabase database = new MainDatabase(Config.initConfig(Server.DATA_FOLDER, "sql.properties"));
+        database.connectToDatabase();
+        server = new Server(database);
+        String salt = KeyGenerators.string().generateKey();
+        for(int i = 0; i < USERS; i++){
+            users.add(new MainDatabase.UserData(UUID.randomUUID(), new Client.CryptographyData(salt, "")));
+        }
+    }
+
+    @Test
+    void authenticatedClientIsRegisteredUntilItDisconnects(){
+        MainDatabase.UserData user = users.get(0);
+        ClientListener listener = new ClientListener(server, new Client(new StubConnection(), null));
+        listener.authenticateUser("user0", "password", user);
+        assertEquals(1, server.getUser("user0").size());
+        assertEquals(1, server.getConnections(user.getUuid()).size());
+
+        listener.disconnectUser("test");
+        assertTrue(server.getUser("user0").isEmpty());
+        assertTrue(server.getConnections(user.getUuid()).isEmpty());
+    }
+
+    @Test
+    @Timeout(120)
+    void disconnectRacingAuthenticationNeverLeavesAClientRegistered() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        //authenticates on another thread, like a frame being handled while a heartbeat eviction or close runs
+        ExecutorService authenticators = Executors.newFixedThreadPool(THREADS);
+        //every few cycles a client stays connected, those must be the only ones left registered
+        ConcurrentLinkedQueue<ClientListener> kept = new ConcurrentLinkedQueue<>();
+
+        long start = System.nanoTime();
+        List<Future<?>> results = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++){
+            results.add(workers.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for(int i = 0; i < CYCLES_PER_THREAD; i++){
+                    int index = random.nextInt(USERS);
+                    ClientListener listener = new ClientListener(server, new Client(new StubConnection(), null));
+                    if(i % AUTHENTICATE_EVERY != 0){
+                        listener.disconnectUser("test");
+                        continue;
+                    }
+                    Future<?> authentication = authenticators.submit(() ->
+                            listener.authenticateUser("user" + index, "password", users.get(index)));
+                    if(i % 100 == 0) kept.add(listener);
+                    else listener.disconnectUser("test");
+                    authentication.get();
+                }
+                return null;
+            }));
+        }
+        for(Future<?> result : results) result.get();
+        long cycles = (long) THREADS * CYCLES_PER_THREAD;
+        System.out.println(String.format("%s connect/disconnect cycles, %s per second", cycles,
+                cycles * TimeUnit.SECONDS.toNanos(1) / (System.nanoTime() - start)));
+        workers.shutdown();
+        authenticators.shutdown();
+
+        int registered = 0;
+        for(int i = 0; i < USERS; i++){
+            assertEquals(server.getUser("user" + i), server.getConnections(users.get(i).getUuid()));
+            registered += server.getUser("user" + i).size();
+        }
+        assertEquals(kept.size(), registered, "only the clients still connected may be registered");
+
+        kept.forEach(listener -> listener.disconnectUser("test"));
+        for(int i = 0; i < USERS; i++){
+            assertTrue(server.getUser("user" + i).isEmpty());
+            assertTrue(server.getConnections(users.get(i).getUuid()).isEmpty());
+        }
+    }
+
+    private static class StubConnection implements Connection {
+        private volatile boolean closed;
+
+        @Override
+        public boolean admit(int size, OutboundQueue.Lane lane, boolean droppable) {
+            return true;
+        }
+
+        @Override
+        public void writeFrame(byte[] data, OutboundQueue.Lane lane) {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public Socket getSocket() {
+            return new Socket(){
+                @Override
+                public InetAddress getInetAddress() {
+                    return InetAddress.getLoopbackAddress();
+                }
+            };
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+    }
+}
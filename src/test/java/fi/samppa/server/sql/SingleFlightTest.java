@@ -0,0 +1,108 @@
+package fi.samppa.server.sql;
+
+import fi.samppa.server.metrics.Metrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fires many identical reads at once while the first one is held open, they must all be answered by that one query.
+ */
+class SingleFlightTest {
+    private static final int CALLERS = 64;
+
+    @Test
+    @Timeout(30)
+    void concurrentReadsShareOneQuery() throws Exception {
+        SingleFlight<String, List<String>> flight = new SingleFlight<>("test.shared");
+        AtomicInteger queries = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> rows = List.of("a", "b");
+
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for(int i = 0; i < CALLERS; i++){
+            results.add(callers.submit(() -> flight.get("user", () -> {
+                queries.incrementAndGet();
+                await(release);
+                return rows;
+            })));
+        }
+        //every caller but the one running the query has joined it before it is let to finish
+        awaitCount(Metrics.counter("test.shared.coalesced"), CALLERS - 1);
+        release.countDown();
+
+        for(Future<List<String>> result : results) assertSame(rows, result.get());
+        callers.shutdown();
+        assertEquals(1, queries.get());
+        assertEquals(1, Metrics.counter("test.shared.queries").sum());
+        assertEquals(CALLERS - 1, Metrics.counter("test.shared.coalesced").sum());
+    }
+
+    @Test
+    @Timeout(30)
+    void failureReachesEveryWaiterAndIsNotRemembered() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test.failing");
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        List<Future<String>> results = new ArrayList<>();
+        for(int i = 0; i < CALLERS; i++){
+            results.add(callers.submit(() -> flight.get("user", () -> {
+                await(release);
+                throw new IllegalStateException("database down");
+            })));
+        }
+        awaitCount(Metrics.counter("test.failing.coalesced"), CALLERS - 1);
+        release.countDown();
+
+        for(Future<String> result : results){
+            ExecutionException e = assertThrows(ExecutionException.class, result::get);
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+        callers.shutdown();
+        assertEquals("ok", flight.get("user", () -> "ok"));
+        assertEquals(2, Metrics.counter("test.failing.queries").sum());
+    }
+
+    @Test
+    void forgottenKeyIsQueriedAgain() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>("test.forget");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        Future<String> stale = reader.submit(() -> flight.get("user", () -> {
+            started.countDown();
+            await(release);
+            return "before write";
+        }));
+        started.await();
+        //a write happened, the next reader must not join the query that started before it
+        flight.forget("user");
+        assertEquals("after write", flight.get("user", () -> "after write"));
+        release.countDown();
+        assertEquals("before write", stale.get());
+        reader.shutdown();
+    }
+
+    private static void await(CountDownLatch latch){
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitCount(LongAdder counter, long count) throws InterruptedException {
+        while (counter.sum() < count) Thread.sleep(1);
+    }
+}